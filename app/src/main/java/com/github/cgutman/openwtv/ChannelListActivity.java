@@ -3,12 +3,22 @@ package com.github.cgutman.openwtv;
 import android.content.Intent;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.widget.EditText;
 
 import com.github.cgutman.openwtv.adapter.ChannelListAdapter;
+import com.github.cgutman.openwtv.cache.ChannelListCache;
+import com.github.cgutman.openwtv.cache.ChannelLogoCache;
+import com.github.cgutman.openwtv.protocol.AsyncRequest;
 import com.github.cgutman.openwtv.protocol.ExtendConnection;
+import com.github.cgutman.openwtv.protocol.ProgramGuide;
+import com.github.cgutman.openwtv.protocol.ServerPool;
+import com.github.cgutman.openwtv.protocol.SessionManager;
 import com.github.cgutman.openwtv.utils.Dialog;
 import com.github.cgutman.openwtv.utils.SpinnerDialog;
 
@@ -16,8 +26,14 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 public class ChannelListActivity extends AppCompatActivity {
+    private static final String TAG = "OWTV";
+
+    // How often the rows are redrawn so now/next follows the clock. The guide
+    // itself only goes back to the server when it runs short.
+    private static final long GUIDE_UPDATE_INTERVAL_MS = 60 * 1000;
 
     public static final String ADDRESS_EXTRA = "com.github.cgutman.openwtv.ChannelListActivity.ADDRESS";
     public static final String PORT_EXTRA = "com.github.cgutman.openwtv.ChannelListActivity.PORT";
@@ -26,9 +42,17 @@ public class ChannelListActivity extends AppCompatActivity {
     private String addressString;
     private int portNumber;
     private String passwdString;
-    private ListView listView;
+    private RecyclerView channelListView;
+    private EditText channelSearchText;
     private ChannelListAdapter channelListAdapter;
-    private Thread channelListLoaderThread;
+    private AsyncRequest<Void> channelListRequest;
+    private final ProgramGuide programGuide = new ProgramGuide();
+    private AsyncRequest<Boolean> guideRequest;
+    private ChannelListCache channelListCache;
+    private ChannelLogoCache channelLogoCache;
+
+    // The list the adapter was last given, or null if it hasn't been given one
+    private volatile List<ExtendConnection.ChannelEntry> lastKnownList;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,74 +63,208 @@ public class ChannelListActivity extends AppCompatActivity {
         portNumber = getIntent().getIntExtra(PORT_EXTRA, 0);
         passwdString = getIntent().getStringExtra(PASSWD_EXTRA);
 
+        channelListCache = new ChannelListCache(this, addressString, portNumber);
         channelListAdapter = new ChannelListAdapter(this, R.layout.channel_list_row);
 
-        listView = (ListView) findViewById(R.id.channelListView);
-        listView.setAdapter(channelListAdapter);
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-                ExtendConnection.ChannelEntry channel = (ExtendConnection.ChannelEntry) listView.getAdapter().getItem(position);
+        channelListView = (RecyclerView) findViewById(R.id.channelListView);
+        channelListView.setLayoutManager(new LinearLayoutManager(this));
+        channelListView.setAdapter(channelListAdapter);
+        channelListAdapter.setProgramGuide(programGuide);
 
+        channelLogoCache = new ChannelLogoCache(this, addressString, portNumber, passwdString);
+        channelListAdapter.setLogoCache(channelLogoCache);
+        channelListAdapter.setOnChannelClickListener(new ChannelListAdapter.OnChannelClickListener() {
+            @Override
+            public void onChannelClick(ExtendConnection.ChannelEntry channel) {
                 Intent intent = new Intent(ChannelListActivity.this, PlayerActivity.class);
                 intent.putExtra(PlayerActivity.ADDRESS_EXTRA, addressString);
                 intent.putExtra(PlayerActivity.PORT_EXTRA, portNumber);
                 intent.putExtra(PlayerActivity.PASSWD_EXTRA, passwdString);
                 intent.putExtra(PlayerActivity.CHANNELID_EXTRA, channel.channelId);
+                intent.putExtra(PlayerActivity.TAP_TIME_EXTRA, SystemClock.elapsedRealtime());
+                intent.putExtra(PlayerActivity.CHANNEL_LIST_EXTRA, channelListAdapter.getChannelIds());
                 startActivity(intent);
             }
         });
+
+        // Narrow the list down as the user types a name or number
+        channelSearchText = (EditText) findViewById(R.id.channelSearchText);
+        channelSearchText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                channelListAdapter.setFilter(s);
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        ServerPool.getInstance().startProbing();
+        updateProgramGuide.run();
+    }
+
+    private final Runnable updateProgramGuide = new Runnable() {
+        @Override
+        public void run() {
+            channelListAdapter.onProgramGuideChanged();
+            if (guideRequest == null || guideRequest.isDone()) {
+                refreshProgramGuide();
+            }
+            channelListView.postDelayed(this, GUIDE_UPDATE_INTERVAL_MS);
+        }
+    };
+
+    // Fetches any guide data we're missing in the background and redraws the
+    // rows once it's in
+    private void refreshProgramGuide() {
+        guideRequest = AsyncRequest.execute(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                InetAddress address = InetAddress.getByName(addressString);
+                ExtendConnection connection = SessionManager.getInstance().getConnection(address, portNumber, passwdString);
+                return programGuide.refresh(connection, System.currentTimeMillis());
+            }
+        }, new AsyncRequest.Callback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean changed) {
+                if (changed) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            channelListAdapter.onProgramGuideChanged();
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                // The list is still usable without the guide
+                Log.w(TAG, "Unable to refresh the program guide: "+e.getMessage());
+            }
+        });
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+        ServerPool.getInstance().stopProbing();
+
+        channelListView.removeCallbacks(updateProgramGuide);
+        channelLogoCache.cancelAll();
+        if (guideRequest != null) {
+            guideRequest.cancel();
+            guideRequest = null;
+        }
 
-        if (channelListLoaderThread != null) {
-            channelListLoaderThread.interrupt();
+        if (channelListRequest != null) {
+            channelListRequest.cancel();
+            channelListRequest = null;
         }
 
         Dialog.closeDialogs();
         SpinnerDialog.closeDialogs(this);
     }
 
+    // Shows the list unless the load it came from has been cancelled by the
+    // time the UI thread gets to it. Loads are cancelled on the UI thread,
+    // when the activity stops or a newer load replaces them.
+    private void showChannelList(final AsyncRequest<?> load, final List<ExtendConnection.ChannelEntry> channelList) {
+        lastKnownList = channelList;
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!load.isCancelled()) {
+                    channelListAdapter.updateChannelList(channelList);
+                }
+            }
+        });
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
 
-        if (channelListLoaderThread != null) {
-            channelListLoaderThread.interrupt();
+        // Cancelling the previous load closes its connection, so quickly
+        // leaving and coming back doesn't leave loads piling up
+        if (channelListRequest != null) {
+            channelListRequest.cancel();
         }
 
         // Reload the channel list
-        channelListLoaderThread = new Thread() {
-            public void run() {
-                try {
-                    InetAddress address;
+        channelListRequest = AsyncRequest.execute(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                final AsyncRequest<?> load = AsyncRequest.getCurrent();
 
-                    try {
-                        address = InetAddress.getByName(addressString);
-                    } catch (UnknownHostException e) {
-                        Dialog.displayDialog(ChannelListActivity.this, "Invalid Address", "The address could not be found.", false);
-                        return;
+                // Show the list we saw last time while we check with the server
+                if (lastKnownList == null) {
+                    List<ExtendConnection.ChannelEntry> cachedList = channelListCache.load();
+                    if (cachedList != null) {
+                        showChannelList(load, cachedList);
                     }
+                }
 
-                    ExtendConnection connection = ExtendConnection.establishConnection(address, portNumber, passwdString);
+                InetAddress address;
 
-                    // TODO: Support more than 1 group
-                    final List<ExtendConnection.ChannelEntry> channelList = connection.requestChannelListForGroup(0);
+                try {
+                    address = InetAddress.getByName(addressString);
+                } catch (UnknownHostException e) {
+                    Dialog.displayDialog(ChannelListActivity.this, "Invalid Address", "The address could not be found.", false);
+                    return null;
+                }
 
-                    ChannelListActivity.this.runOnUiThread(new Runnable() {
+                ExtendConnection connection = SessionManager.getInstance().getConnection(address, portNumber, passwdString);
+
+                // If there's nothing on screen yet, show channels as they're parsed
+                // rather than waiting for the whole lineup to download
+                ExtendConnection.ChannelListListener listener = null;
+                if (lastKnownList == null) {
+                    listener = new ExtendConnection.ChannelListListener() {
                         @Override
-                        public void run() {
-                            channelListAdapter.updateChannelList(channelList);
+                        public void onChannelsParsed(final List<ExtendConnection.ChannelEntry> batch) {
+                            runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (!load.isCancelled()) {
+                                        channelListAdapter.appendChannels(batch);
+                                    }
+                                }
+                            });
                         }
-                    });
-                } catch (IOException e) {
-                    Dialog.displayDialog(ChannelListActivity.this, "Connection Error", e.getMessage(), true);
+                    };
                 }
+
+                List<ExtendConnection.ChannelEntry> channelList = connection.requestChannelList(listener);
+
+                // Let the pool know which channels this server can tune
+                ServerPool pool = ServerPool.getInstance();
+                pool.setLineup(pool.add(addressString, portNumber, passwdString), channelList);
+
+                // Leave the adapter alone if nothing changed
+                if (!channelList.equals(lastKnownList)) {
+                    channelListCache.save(channelList);
+                    showChannelList(load, channelList);
+                }
+
+                return null;
             }
-        };
-        channelListLoaderThread.start();
+        }, new AsyncRequest.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {}
+
+            @Override
+            public void onFailure(IOException e) {
+                Dialog.displayDialog(ChannelListActivity.this, "Connection Error", e.getMessage(), true);
+            }
+        });
     }
 }
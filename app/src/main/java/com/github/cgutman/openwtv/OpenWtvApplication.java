@@ -0,0 +1,42 @@
+package com.github.cgutman.openwtv;
+
+import android.app.Application;
+import android.util.Log;
+
+import com.github.cgutman.openwtv.cache.ServerPoolStore;
+import com.github.cgutman.openwtv.protocol.ProtocolLog;
+import com.github.cgutman.openwtv.protocol.ServerPool;
+
+public class OpenWtvApplication extends Application {
+    private static final String TAG = "OWTV";
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Send the protocol layer's logging to logcat
+        ProtocolLog.setSink(new ProtocolLog.Sink() {
+            @Override
+            public void debug(String message) {
+                Log.d(TAG, message);
+            }
+
+            @Override
+            public void info(String message) {
+                Log.i(TAG, message);
+            }
+
+            @Override
+            public void warn(String message, Throwable t) {
+                if (t != null) {
+                    Log.w(TAG, message, t);
+                }
+                else {
+                    Log.w(TAG, message);
+                }
+            }
+        });
+
+        new ServerPoolStore(this).load(ServerPool.getInstance());
+    }
+}
@@ -0,0 +1,816 @@
+package com.github.cgutman.openwtv;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.cgutman.openwtv.hls.AbrController;
+import com.github.cgutman.openwtv.hls.HlsProxy;
+import com.github.cgutman.openwtv.protocol.AsyncRequest;
+import com.github.cgutman.openwtv.protocol.EncodingProfile;
+import com.github.cgutman.openwtv.protocol.ExtendConnection;
+import com.github.cgutman.openwtv.protocol.RequestFailedException;
+import com.github.cgutman.openwtv.protocol.ServerPool;
+import com.github.cgutman.openwtv.protocol.SessionManager;
+import com.github.cgutman.openwtv.protocol.TranscodePollScheduler;
+import com.github.cgutman.openwtv.utils.Metrics;
+import com.github.cgutman.openwtv.utils.MetricsReport;
+import com.github.cgutman.openwtv.utils.TuneTimeline;
+
+import org.json.JSONException;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+// Owns the server connection, the transcode and the local HLS proxy so they
+// outlive PlayerActivity. When the player goes into the background we keep
+// the transcode warm with periodic status polls and playlist refreshes, so
+// coming back only has to reattach the video view to the proxy.
+//
+// To make channel changes fast, a second session on the same server can start
+// transcoding the channel we expect to be zapped to next. If the guess is
+// right, the zap only has to point the proxy at the already running stream.
+// A session with a transcode running is never dropped while we're playing:
+// it's kept as a standby, counted against its server, and reused for the
+// next guess on that server since a new transcode replaces its old one.
+//
+// With more than one server in the ServerPool, a channel is tuned on the
+// least loaded healthy server that carries it. If that server turns the
+// transcode down, usually because its tuners are busy, we move on to the next.
+//
+// The encoding profile follows the network. Segment download throughput and
+// read-ahead level from the proxy drive an AbrController, and when it picks
+// another profile the transcode is restarted at that profile behind the proxy.
+public class PlaybackService extends Service {
+    private static final String TAG = "OWTV";
+
+    // Start the player as soon as the first segment exists instead of
+    // waiting for the server to report that initial buffering is done
+    private static final boolean START_ON_FIRST_SEGMENT = true;
+
+    private static final long KEEPALIVE_INTERVAL_MS = 5000;
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    public interface Listener {
+        void onTuneProgress(String message);
+        void onTuneReady(String url);
+        void onTuneFailed(String title, String message);
+    }
+
+    public class LocalBinder extends Binder {
+        public PlaybackService getService() {
+            return PlaybackService.this;
+        }
+    }
+
+    // A session other than the one we're watching on, which may be running
+    // a transcode of its own
+    private static class Standby {
+        final ServerPool.Server server;
+        ExtendConnection connection;
+
+        // The channel it's transcoding, or -1 if we don't know of one
+        int channelId = -1;
+
+        // Whether its transcode is counted against the server in the pool
+        boolean counted;
+
+        // The prewarm that's using the session, if any
+        AsyncRequest<Void> owner;
+
+        Standby(ServerPool.Server server, ExtendConnection connection) {
+            this.server = server;
+            this.connection = connection;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // The following are protected by the PlaybackService monitor
+    private Listener listener;
+    private long detachedTime;
+    private AsyncRequest<Void> tuneRequest;
+    private Runnable keepAliveTick;
+    private AsyncRequest<Void> keepAliveRequest;
+    private HlsProxy proxy;
+    private String tunedServer;
+    private int tunedChannelId = -1;
+    private String readyUrl;
+    private ExtendConnection currentConnection;
+    private ServerPool.Server currentServer;
+    private int currentChannelId = -1;
+
+    // The server our running transcode is counted against in the pool
+    private ServerPool.Server transcodeServer;
+
+    // Sessions we're not watching on, at most one per server unless a zap
+    // moved us off a server that already had one
+    private final ArrayList<Standby> standbys = new ArrayList<Standby>();
+    private AsyncRequest<Void> prewarmRequest;
+    private boolean prewarmEnabled = true;
+    private boolean destroyed;
+
+    // Kept for the life of the service so what we learn about the network
+    // carries over from one channel to the next
+    private final AbrController abr = new AbrController(EncodingProfile.getLadderBitrates(),
+            EncodingProfile.DEFAULT_LADDER_INDEX, SystemClock.elapsedRealtime());
+    private AsyncRequest<Void> profileSwitchRequest;
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        ServerPool.getInstance().startProbing();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // We're started so we stay alive while the player is in the background
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopPlayback();
+
+        synchronized (this) {
+            destroyed = true;
+            releaseStandbys();
+        }
+        ServerPool.getInstance().stopProbing();
+    }
+
+    // Prints the tuning metrics as JSON for "adb shell dumpsys activity service
+    // com.github.cgutman.openwtv/.PlaybackService"
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        try {
+            writer.println(MetricsReport.toJson().toString(2));
+        } catch (JSONException e) {
+            writer.println("Unable to build metrics report: "+e.getMessage());
+        }
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+
+        if (listener == null) {
+            detachedTime = SystemClock.elapsedRealtime();
+        }
+        else if (readyUrl != null) {
+            // Hand the existing stream straight back to the new listener
+            notifyReady(readyUrl);
+        }
+    }
+
+    private void notifyProgress(final String message) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener l = getListener();
+                if (l != null) {
+                    l.onTuneProgress(message);
+                }
+            }
+        });
+    }
+
+    private void notifyReady(final String url) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener l = getListener();
+                if (l != null) {
+                    l.onTuneReady(url);
+                }
+            }
+        });
+    }
+
+    private void notifyFailed(final String title, final String message) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener l = getListener();
+                if (l != null) {
+                    l.onTuneFailed(title, message);
+                }
+            }
+        });
+    }
+
+    private synchronized Listener getListener() {
+        return listener;
+    }
+
+    // Tunes to the given channel, on the given server or another server in the
+    // pool that carries it. If nextChannelId is not -1, the service will try
+    // to start transcoding it on a standby session once this one is playing.
+    public synchronized void tune(final String address, final int port, final String password,
+                                  final int channelId, final int nextChannelId, final TuneTimeline timeline) {
+        final String server = address + ":" + port;
+
+        if (server.equals(tunedServer) && channelId == tunedChannelId) {
+            if (readyUrl != null) {
+                // Already streaming this channel
+                notifyReady(readyUrl);
+                return;
+            }
+            else if (tuneRequest != null && !tuneRequest.isDone()) {
+                // Still tuning it, so the listener will hear about it shortly
+                return;
+            }
+        }
+
+        // Stay on the session we're already using if we can
+        final ExtendConnection previous = currentConnection;
+        final ServerPool.Server previousServer = currentServer;
+        final int previousChannelId = currentChannelId;
+        final ServerPool.Server requestedServer = ServerPool.getInstance().add(address, port, password);
+
+        stopPlayback();
+
+        tunedServer = server;
+        tunedChannelId = channelId;
+
+        // The session we were watching on is handed to the new tune, which
+        // either reuses it or keeps it as a standby
+        currentConnection = null;
+        currentServer = null;
+        currentChannelId = -1;
+
+        tuneRequest = AsyncRequest.execute(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                ExtendConnection connection = null;
+                ServerPool.Server streamServer = null;
+                int streamChannelId = -1;
+                int previousStandbyChannelId = previousChannelId;
+
+                synchronized (PlaybackService.this) {
+                    Standby warm = findWarmStandby(requestedServer, channelId);
+                    if (warm != null) {
+                        // We guessed right, so this channel is already transcoding.
+                        // Its transcode is counted again below as the one we watch.
+                        removeStandby(warm);
+                        connection = warm.connection;
+                        streamServer = warm.server;
+                        streamChannelId = warm.channelId;
+                    }
+                }
+
+                try {
+                    if (connection != null) {
+                        timeline.mark(TuneTimeline.LOGIN);
+                    }
+                    else {
+                        List<ServerPool.Candidate> candidates =
+                                ServerPool.getInstance().selectServers(requestedServer, channelId);
+                        boolean requestedIncluded = false;
+                        for (ServerPool.Candidate candidate : candidates) {
+                            requestedIncluded |= candidate.server == requestedServer;
+                        }
+                        if (!requestedIncluded) {
+                            // Whatever the pool thinks of it, the server the user
+                            // picked is always worth a try
+                            candidates.add(new ServerPool.Candidate(requestedServer, channelId));
+                        }
+
+                        IOException lastError = null;
+                        for (ServerPool.Candidate option : candidates) {
+                            ServerPool.Server candidate = option.server;
+
+                            // Reuse a session we already have on the server,
+                            // since its transcode is replaced by the new one
+                            Standby spare = null;
+                            ExtendConnection session = null;
+                            if (candidate == previousServer) {
+                                session = previous;
+                            }
+                            else {
+                                synchronized (PlaybackService.this) {
+                                    spare = findStandby(candidate);
+                                    if (spare != null) {
+                                        removeStandby(spare);
+                                        session = spare.connection;
+                                    }
+                                }
+                            }
+
+                            try {
+                                connection = startTranscode(session, candidate, option.channelId, timeline);
+                                streamServer = candidate;
+                                streamChannelId = option.channelId;
+                                break;
+                            } catch (IOException e) {
+                                // No telling what the session is transcoding now
+                                if (spare != null) {
+                                    synchronized (PlaybackService.this) {
+                                        addStandby(candidate, spare.connection, -1);
+                                    }
+                                }
+                                else if (session != null) {
+                                    previousStandbyChannelId = -1;
+                                }
+                                if (e instanceof InterruptedIOException || AsyncRequest.getCurrent().isCancelled()) {
+                                    // Failed because we were cancelled, not because of the server
+                                    throw e;
+                                }
+                                lastError = e;
+                            }
+
+                            if (lastError instanceof RequestFailedException) {
+                                // Most likely out of tuners, so try the next server
+                                Log.w(TAG, candidate+" rejected channel "+option.channelId+": "+lastError.getMessage());
+                                ServerPool.getInstance().onTranscodeRejected(candidate);
+                                notifyProgress("Server busy, trying another...");
+                            }
+                            else {
+                                Log.w(TAG, "Unable to reach "+candidate+": "+lastError.getMessage());
+                                ServerPool.getInstance().onUnreachable(candidate);
+                            }
+                        }
+
+                        if (connection == null) {
+                            if (lastError instanceof UnknownHostException) {
+                                notifyFailed("Invalid Address", "The address could not be found.");
+                                return null;
+                            }
+                            throw lastError;
+                        }
+                    }
+                } finally {
+                    if (previous != null && connection != previous) {
+                        // Keep the session we were watching on, and whatever
+                        // it's still transcoding, for the next guess on its server
+                        synchronized (PlaybackService.this) {
+                            addStandby(previousServer, previous, previousStandbyChannelId);
+                        }
+                    }
+                }
+                timeline.mark(TuneTimeline.TRANSCODE_START);
+
+                // Our guess at the next channel, as the stream's server knows it
+                int nextStreamChannelId = nextChannelId != -1 ?
+                        ServerPool.getInstance().findChannelId(requestedServer, nextChannelId, streamServer) : -1;
+
+                boolean streaming = false;
+                try {
+                    streaming = startStreaming(connection, streamServer, streamChannelId, nextStreamChannelId, timeline);
+                } finally {
+                    if (!streaming) {
+                        // We won't be watching it after all, but it's transcoding
+                        synchronized (PlaybackService.this) {
+                            addStandby(streamServer, connection, streamChannelId);
+                        }
+                    }
+                }
+
+                return null;
+            }
+        }, new AsyncRequest.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {}
+
+            @Override
+            public void onFailure(IOException e) {
+                notifyFailed("Connection Error", e.getMessage());
+            }
+        });
+    }
+
+    // Waits for the transcode and puts the proxy in front of it. Returns
+    // false if we were stopped or replaced in the meantime.
+    private boolean startStreaming(final ExtendConnection connection, ServerPool.Server streamServer,
+                                   final int channelId, int nextChannelId, TuneTimeline timeline) throws IOException {
+        if (!waitForTranscode(connection, channelId, timeline)) {
+            return false;
+        }
+
+        // Serve the stream through a local read-ahead proxy
+        final HlsProxy newProxy = new HlsProxy(connection.getTransport(), connection.getPlaybackUrl(channelId));
+        newProxy.setListener(new HlsProxy.Listener() {
+            @Override
+            public void onSegmentDownloaded(long bytes, long downloadMs, long segmentDurationMs, long bufferedMs) {
+                onSegmentStats(newProxy, connection, channelId,
+                        bytes, downloadMs, segmentDurationMs, bufferedMs);
+            }
+        });
+        newProxy.start();
+
+        synchronized (this) {
+            if (tuneRequest != AsyncRequest.getCurrent()) {
+                // We were replaced or stopped while starting up
+                newProxy.stop();
+                return false;
+            }
+
+            proxy = newProxy;
+            readyUrl = newProxy.getLocalUrl();
+            currentConnection = connection;
+            currentServer = streamServer;
+            currentChannelId = channelId;
+            transcodeServer = streamServer;
+            ServerPool.getInstance().onTranscodeStarted(streamServer);
+            startKeepAlive(connection);
+            notifyReady(readyUrl);
+
+            startPrewarm(streamServer, nextChannelId);
+        }
+
+        return true;
+    }
+
+    // Logs in to the server, unless we already have a session on it, and starts
+    // transcoding the channel at the current profile
+    private ExtendConnection startTranscode(ExtendConnection connection, ServerPool.Server server,
+                                            int channelId, TuneTimeline timeline) throws IOException {
+        if (connection == null) {
+            long start = Metrics.begin();
+            InetAddress address = InetAddress.getByName(server.address);
+            Metrics.end(Metrics.DNS, start);
+
+            connection = SessionManager.getInstance().getConnection(address, server.port, server.getPassword());
+        }
+        timeline.mark(TuneTimeline.LOGIN);
+
+        connection.setEncoding(getCurrentProfile());
+        connection.beginTranscode(channelId);
+        return connection;
+    }
+
+    private boolean waitForTranscode(ExtendConnection connection, int channelId, TuneTimeline timeline) throws IOException {
+        TranscodePollScheduler scheduler = new TranscodePollScheduler();
+        long delay = scheduler.getInitialDelay();
+        for (;;) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+
+            ExtendConnection.TranscodeStatus status = connection.requestTranscodeStatus();
+            notifyProgress("Transcoding: "+status.percentage+"%");
+
+            if (status.finishedBuffering) {
+                timeline.mark(TuneTimeline.FIRST_SEGMENT);
+                return true;
+            }
+
+            if (START_ON_FIRST_SEGMENT && status.percentage > 0 &&
+                    connection.isFirstSegmentAvailable(channelId)) {
+                timeline.mark(TuneTimeline.FIRST_SEGMENT);
+                return true;
+            }
+
+            delay = scheduler.onStatus(SystemClock.elapsedRealtime(), status.percentage);
+        }
+    }
+
+    private synchronized EncodingProfile getCurrentProfile() {
+        return EncodingProfile.LADDER.get(abr.getCurrentIndex());
+    }
+
+    private synchronized void onSegmentStats(HlsProxy segmentProxy, ExtendConnection connection, int channelId,
+                                             long bytes, long downloadMs, long segmentDurationMs, long bufferedMs) {
+        if (segmentProxy != proxy) {
+            // Left over from a stream we've moved on from
+            return;
+        }
+        if (profileSwitchRequest != null && !profileSwitchRequest.isDone()) {
+            // These were measured against the profile we're switching away from
+            return;
+        }
+
+        abr.onSegmentDownloaded(bytes, downloadMs, segmentDurationMs);
+        abr.onBufferLevel(bufferedMs);
+
+        int index = abr.chooseIndex(SystemClock.elapsedRealtime());
+        if (index != abr.getCurrentIndex()) {
+            startProfileSwitch(segmentProxy, connection, channelId, index);
+        }
+    }
+
+    // Restarts the transcode at another profile while the proxy keeps the
+    // player going from its cache. Must be called with the PlaybackService
+    // monitor held.
+    private void startProfileSwitch(final HlsProxy switchProxy, final ExtendConnection connection,
+                                    final int channelId, final int index) {
+        final EncodingProfile profile = EncodingProfile.LADDER.get(index);
+        Log.i(TAG, "Switching to "+profile+" at an estimated "+abr.getEstimateKbps()+"kbps");
+
+        // Don't try this again until the switch has had time to take effect
+        abr.onSwitched(index, SystemClock.elapsedRealtime());
+        Metrics.count(Metrics.PROFILE_SWITCHES, 1);
+
+        profileSwitchRequest = AsyncRequest.execute(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                switchProxy.beginRestart();
+                try {
+                    connection.setEncoding(profile);
+                    connection.beginTranscode(channelId);
+                    waitForTranscode(connection, channelId, new TuneTimeline(SystemClock.elapsedRealtime()));
+                } finally {
+                    switchProxy.finishRestart();
+                }
+
+                return null;
+            }
+        }, new AsyncRequest.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {}
+
+            @Override
+            public void onFailure(IOException e) {
+                Log.w(TAG, "Switching to "+profile+" failed: "+e.getMessage());
+            }
+        });
+    }
+
+    // Must be called with the PlaybackService monitor held
+    private void startPrewarm(final ServerPool.Server server, final int channelId) {
+        if (!prewarmEnabled || channelId == -1 || channelId == currentChannelId) {
+            return;
+        }
+
+        // Use the session we already have on the server if there is one
+        Standby session = null;
+        for (Standby standby : standbys) {
+            if (standby.server == server) {
+                if (standby.channelId == channelId) {
+                    // Already warm
+                    return;
+                }
+                if (session == null) {
+                    session = standby;
+                }
+            }
+        }
+        if (session == null) {
+            session = new Standby(server, null);
+            standbys.add(session);
+        }
+
+        if (prewarmRequest != null) {
+            prewarmRequest.cancel();
+        }
+
+        // Its old transcode, if any, stays counted until the new one replaces it
+        final Standby standby = session;
+        standby.channelId = -1;
+
+        // The request can't get going until we drop the monitor, by which
+        // time it owns the session
+        prewarmRequest = AsyncRequest.execute(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                ExtendConnection connection;
+                synchronized (PlaybackService.this) {
+                    if (standby.owner != AsyncRequest.getCurrent()) {
+                        return null;
+                    }
+                    connection = standby.connection;
+                }
+
+                if (connection == null) {
+                    // This needs its own session so it doesn't replace the
+                    // transcode we're currently watching. It's kept right
+                    // away so later guesses reuse it even if this one is
+                    // cancelled.
+                    connection = SessionManager.getInstance().newConnection(
+                            InetAddress.getByName(server.address), server.port, server.getPassword());
+
+                    synchronized (PlaybackService.this) {
+                        standby.connection = connection;
+                        if (standby.owner != AsyncRequest.getCurrent()) {
+                            return null;
+                        }
+                    }
+                }
+
+                connection.setEncoding(getCurrentProfile());
+                connection.beginTranscode(channelId);
+
+                synchronized (PlaybackService.this) {
+                    if (!standbys.contains(standby)) {
+                        // Released while we were starting it
+                        return null;
+                    }
+
+                    if (!standby.counted) {
+                        ServerPool.getInstance().onTranscodeStarted(server);
+                        standby.counted = true;
+                    }
+                    if (standby.owner == AsyncRequest.getCurrent()) {
+                        standby.channelId = channelId;
+                        standby.owner = null;
+                    }
+                }
+
+                return null;
+            }
+        }, new AsyncRequest.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {}
+
+            @Override
+            public void onFailure(IOException e) {
+                // Most likely the server doesn't have a free tuner for a
+                // second transcode, so don't keep trying
+                Log.w(TAG, "Prewarming channel "+channelId+" failed: "+e.getMessage());
+                synchronized (PlaybackService.this) {
+                    prewarmEnabled = false;
+                }
+            }
+        });
+        standby.owner = prewarmRequest;
+    }
+
+    // A standby is free to take when it has a session and no prewarm is
+    // using it. Must be called with the PlaybackService monitor held.
+    private static boolean isIdle(Standby standby) {
+        return standby.connection != null && (standby.owner == null || standby.owner.isDone());
+    }
+
+    // Returns an idle standby on the server, or null. Must be called with the
+    // PlaybackService monitor held.
+    private Standby findStandby(ServerPool.Server server) {
+        for (Standby standby : standbys) {
+            if (isIdle(standby) && standby.server == server) {
+                return standby;
+            }
+        }
+        return null;
+    }
+
+    // Returns an idle standby that's transcoding the given channel of the
+    // origin server, on whichever server it is, or null. Must be called with
+    // the PlaybackService monitor held.
+    private Standby findWarmStandby(ServerPool.Server origin, int channelId) {
+        for (Standby standby : standbys) {
+            if (isIdle(standby) && standby.channelId != -1 &&
+                    standby.channelId == ServerPool.getInstance().findChannelId(origin, channelId, standby.server)) {
+                return standby;
+            }
+        }
+        return null;
+    }
+
+    // Keeps a session we've stopped watching on. Must be called with the
+    // PlaybackService monitor held.
+    private void addStandby(ServerPool.Server server, ExtendConnection connection, int channelId) {
+        if (destroyed) {
+            return;
+        }
+
+        Standby standby = new Standby(server, connection);
+        standby.channelId = channelId;
+        if (channelId != -1) {
+            ServerPool.getInstance().onTranscodeStarted(server);
+            standby.counted = true;
+        }
+        standbys.add(standby);
+    }
+
+    // Must be called with the PlaybackService monitor held
+    private void removeStandby(Standby standby) {
+        standbys.remove(standby);
+        standby.owner = null;
+        if (standby.counted) {
+            ServerPool.getInstance().onTranscodeStopped(standby.server);
+            standby.counted = false;
+        }
+    }
+
+    // Must be called with the PlaybackService monitor held
+    private void releaseStandbys() {
+        while (!standbys.isEmpty()) {
+            removeStandby(standbys.get(standbys.size() - 1));
+        }
+    }
+
+    // Polls the transcode every few seconds while nobody is watching, one
+    // short request at a time, and lets it go once we've been idle too long.
+    // Must be called with the PlaybackService monitor held.
+    private void startKeepAlive(final ExtendConnection connection) {
+        final HlsProxy keepAliveProxy = proxy;
+
+        keepAliveTick = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PlaybackService.this) {
+                    if (keepAliveTick != this) {
+                        // Stopped or replaced since this was posted
+                        return;
+                    }
+                    handler.postDelayed(this, KEEPALIVE_INTERVAL_MS);
+
+                    if (listener != null) {
+                        // The player is attached and pulling the stream itself
+                        return;
+                    }
+
+                    if (SystemClock.elapsedRealtime() - detachedTime > IDLE_TIMEOUT_MS) {
+                        // Nobody came back for it, so let the server go
+                        Log.i(TAG, "Stopping idle transcode");
+                        stopPlayback();
+                        stopSelf();
+                        return;
+                    }
+
+                    if (keepAliveRequest != null && !keepAliveRequest.isDone()) {
+                        // The last poll hasn't finished yet
+                        return;
+                    }
+
+                    keepAliveRequest = AsyncRequest.execute(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            connection.requestTranscodeStatus();
+                            keepAliveProxy.refreshPlaylist();
+                            return null;
+                        }
+                    }, new AsyncRequest.Callback<Void>() {
+                        @Override
+                        public void onSuccess(Void result) {}
+
+                        @Override
+                        public void onFailure(IOException e) {
+                            Log.w(TAG, "Keep-alive poll failed: "+e.getMessage());
+                        }
+                    });
+                }
+            }
+        };
+        handler.postDelayed(keepAliveTick, KEEPALIVE_INTERVAL_MS);
+    }
+
+    // Called when a player is done with the stream for good. This is a no-op
+    // if another player has already attached to the service in the meantime.
+    public synchronized void release(Listener owner) {
+        if (listener == null || listener == owner) {
+            stopPlayback();
+
+            currentConnection = null;
+            currentServer = null;
+            currentChannelId = -1;
+            releaseStandbys();
+
+            stopSelf();
+        }
+    }
+
+    public synchronized void stopPlayback() {
+        if (tuneRequest != null) {
+            tuneRequest.cancel();
+            tuneRequest = null;
+        }
+        if (keepAliveTick != null) {
+            handler.removeCallbacks(keepAliveTick);
+            keepAliveTick = null;
+        }
+        if (keepAliveRequest != null) {
+            keepAliveRequest.cancel();
+            keepAliveRequest = null;
+        }
+        if (prewarmRequest != null) {
+            prewarmRequest.cancel();
+            prewarmRequest = null;
+        }
+        if (profileSwitchRequest != null) {
+            profileSwitchRequest.cancel();
+            profileSwitchRequest = null;
+        }
+        if (proxy != null) {
+            proxy.stop();
+            proxy = null;
+        }
+        if (transcodeServer != null) {
+            ServerPool.getInstance().onTranscodeStopped(transcodeServer);
+            transcodeServer = null;
+        }
+
+        tunedServer = null;
+        tunedChannelId = -1;
+        readyUrl = null;
+    }
+}
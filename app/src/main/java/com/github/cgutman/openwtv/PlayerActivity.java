@@ -1,35 +1,53 @@
 package com.github.cgutman.openwtv;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.view.KeyEvent;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.TextView;
 import android.widget.VideoView;
 
-import com.github.cgutman.openwtv.protocol.ExtendConnection;
 import com.github.cgutman.openwtv.utils.Dialog;
+import com.github.cgutman.openwtv.utils.Metrics;
+import com.github.cgutman.openwtv.utils.MetricsReport;
 import com.github.cgutman.openwtv.utils.SpinnerDialog;
+import com.github.cgutman.openwtv.utils.TuneTimeline;
 
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
-public class PlayerActivity extends AppCompatActivity implements View.OnSystemUiVisibilityChangeListener {
+public class PlayerActivity extends AppCompatActivity implements View.OnSystemUiVisibilityChangeListener,
+        PlaybackService.Listener {
     public static final String ADDRESS_EXTRA = "com.github.cgutman.openwtv.PlayerActivity.ADDRESS";
     public static final String PORT_EXTRA = "com.github.cgutman.openwtv.PlayerActivity.PORT";
     public static final String PASSWD_EXTRA = "com.github.cgutman.openwtv.PlayerActivity.PASSWD";
     public static final String CHANNELID_EXTRA = "com.github.cgutman.openwtv.PlayerActivity.CHANNELID";
+    public static final String TAP_TIME_EXTRA = "com.github.cgutman.openwtv.PlayerActivity.TAP_TIME";
+    public static final String CHANNEL_LIST_EXTRA = "com.github.cgutman.openwtv.PlayerActivity.CHANNEL_LIST";
 
     private String addressString;
     private int portNumber;
     private String passwdString;
     private int channelId;
-
-    private Thread loaderThread;
+    private int[] channelList;
+    private int zapDirection = 1;
+    private TuneTimeline timeline;
+
+    private VideoView videoView;
+    private TextView metricsOverlay;
+    private long prepareStartTime;
+    private SpinnerDialog spinner;
+    private PlaybackService playbackService;
+    private String playbackUrl;
+    private boolean started;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,6 +57,8 @@ public class PlayerActivity extends AppCompatActivity implements View.OnSystemUi
         portNumber = getIntent().getIntExtra(PORT_EXTRA, 0);
         passwdString = getIntent().getStringExtra(PASSWD_EXTRA);
         channelId = getIntent().getIntExtra(CHANNELID_EXTRA, -1);
+        channelList = getIntent().getIntArrayExtra(CHANNEL_LIST_EXTRA);
+        timeline = new TuneTimeline(getIntent().getLongExtra(TAP_TIME_EXTRA, SystemClock.elapsedRealtime()));
 
         if (channelId == -1) {
             finish();
@@ -66,76 +86,177 @@ public class PlayerActivity extends AppCompatActivity implements View.OnSystemUi
 
         setContentView(R.layout.activity_player);
 
-        // Display a spinner dialog while transcoding
-        final SpinnerDialog spinner = SpinnerDialog.displayDialog(this, "Loading Channel",
-                "Connecting...", true);
-
-        loaderThread = new Thread() {
-            public void run() {
-                try {
-                    InetAddress address;
-
-                    try {
-                        address = InetAddress.getByName(addressString);
-                    } catch (UnknownHostException e) {
-                        Dialog.displayDialog(PlayerActivity.this, "Invalid Address", "The address could not be found.", false);
-                        return;
-                    }
-
-                    ExtendConnection connection = ExtendConnection.establishConnection(address, portNumber, passwdString);
-
-                    // Set the desired encoding profile
-                    connection.setResolution1280x720();
-
-                    // Start transcoding
-                    connection.beginTranscode(channelId);
-
-                    ExtendConnection.TranscodeStatus status;
-                    do {
-                        // Wait 500 ms before polling again
-                        try {
-                            Thread.sleep(500);
-                        } catch (InterruptedException e) {
-                            return;
-                        }
-
-                        // Update the dialog after each poll
-                        status = connection.requestTranscodeStatus();
-                        spinner.setMessage("Transcoding: "+status.percentage+"%");
-                    } while (!status.finishedBuffering);
-
-                    // Close the spinner
-                    spinner.dismiss();
-
-                    final String url = connection.getPlaybackUrl(channelId);
-
-                    PlayerActivity.this.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            VideoView videoView = (VideoView)findViewById(R.id.videoView);
-                            videoView.setVideoURI(Uri.parse(url));
-                            videoView.requestFocus();
-                            videoView.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                                public void onPrepared(MediaPlayer mp) {
-                                    hideSystemUi(1000);
-                                    mp.start();
-                                }
-                            });
-                            videoView.setOnErrorListener(new MediaPlayer.OnErrorListener() {
-                                @Override
-                                public boolean onError(MediaPlayer mediaPlayer, int i, int i1) {
-                                    Dialog.displayDialog(PlayerActivity.this, "Playback Error", "The video player has encountered an error.", true);
-                                    return true;
-                                }
-                            });
-                        }
-                    });
-                } catch (IOException e) {
-                    Dialog.displayDialog(PlayerActivity.this, "Connection Error", e.getMessage(), true);
+        videoView = (VideoView) findViewById(R.id.videoView);
+        metricsOverlay = (TextView) findViewById(R.id.metricsOverlay);
+        videoView.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            public void onPrepared(MediaPlayer mp) {
+                hideSystemUi(1000);
+                mp.start();
+
+                if (prepareStartTime != 0) {
+                    Metrics.end(Metrics.PREPARE, prepareStartTime);
+                    prepareStartTime = 0;
+                }
+
+                if (timeline != null) {
+                    timeline.mark(TuneTimeline.FIRST_FRAME);
+                    timeline.log();
+                    Metrics.record(Metrics.TUNE, timeline.getElapsed(TuneTimeline.FIRST_FRAME));
+
+                    // Resuming later shouldn't count as another tune
+                    timeline = null;
+                }
+            }
+        });
+        videoView.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mediaPlayer, int i, int i1) {
+                Dialog.displayDialog(PlayerActivity.this, "Playback Error", "The video player has encountered an error.", true);
+                return true;
+            }
+        });
+
+        // The service keeps the stream alive while we're in the background
+        Intent serviceIntent = new Intent(this, PlaybackService.class);
+        startService(serviceIntent);
+        bindService(serviceIntent, serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder binder) {
+            playbackService = ((PlaybackService.LocalBinder) binder).getService();
+
+            if (started) {
+                playbackService.setListener(PlayerActivity.this);
+            }
+
+            // This returns immediately if the channel is already streaming
+            playbackService.tune(addressString, portNumber, passwdString, channelId, getNeighborChannel(zapDirection),
+                    timeline != null ? timeline : new TuneTimeline(SystemClock.elapsedRealtime()));
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            playbackService = null;
+        }
+    };
+
+    // Returns the channel that's the given number of steps away in the lineup
+    private int getNeighborChannel(int offset) {
+        if (channelList == null || channelList.length < 2) {
+            return -1;
+        }
+
+        for (int i = 0; i < channelList.length; i++) {
+            if (channelList[i] == channelId) {
+                int index = (i + offset) % channelList.length;
+                if (index < 0) {
+                    index += channelList.length;
                 }
+                return channelList[index];
             }
-        };
-        loaderThread.start();
+        }
+
+        return -1;
+    }
+
+    private void zap(int direction) {
+        int newChannelId = getNeighborChannel(direction);
+        if (newChannelId == -1 || playbackService == null) {
+            return;
+        }
+
+        channelId = newChannelId;
+        zapDirection = direction;
+        timeline = new TuneTimeline(SystemClock.elapsedRealtime());
+
+        videoView.stopPlayback();
+        playbackUrl = null;
+
+        if (spinner == null) {
+            spinner = SpinnerDialog.displayDialog(this, "Loading Channel", "Connecting...", true);
+        }
+
+        // The session stays open, and if we keep zapping the same way the
+        // next channel may already be transcoding on the standby session
+        playbackService.tune(addressString, portNumber, passwdString, channelId,
+                getNeighborChannel(direction), timeline);
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_CHANNEL_UP:
+            case KeyEvent.KEYCODE_DPAD_UP:
+            case KeyEvent.KEYCODE_PAGE_UP:
+                zap(1);
+                return true;
+            case KeyEvent.KEYCODE_CHANNEL_DOWN:
+            case KeyEvent.KEYCODE_DPAD_DOWN:
+            case KeyEvent.KEYCODE_PAGE_DOWN:
+                zap(-1);
+                return true;
+            case KeyEvent.KEYCODE_INFO:
+                toggleMetricsOverlay();
+                return true;
+        }
+
+        return super.onKeyDown(keyCode, event);
+    }
+
+    private final Runnable updateMetricsOverlay = new Runnable() {
+        @Override
+        public void run() {
+            metricsOverlay.setText(MetricsReport.toText());
+
+            if (metricsOverlay.getVisibility() == View.VISIBLE) {
+                metricsOverlay.postDelayed(this, 1000);
+            }
+        }
+    };
+
+    // The info key shows the tuning metrics on top of the video
+    private void toggleMetricsOverlay() {
+        if (metricsOverlay.getVisibility() == View.VISIBLE) {
+            metricsOverlay.setVisibility(View.GONE);
+            metricsOverlay.removeCallbacks(updateMetricsOverlay);
+        }
+        else {
+            metricsOverlay.setVisibility(View.VISIBLE);
+            updateMetricsOverlay.run();
+        }
+    }
+
+    @Override
+    public void onTuneProgress(String message) {
+        if (spinner != null) {
+            spinner.setMessage(message);
+        }
+    }
+
+    @Override
+    public void onTuneReady(String url) {
+        if (spinner != null) {
+            spinner.dismiss();
+            spinner = null;
+        }
+
+        if (!url.equals(playbackUrl)) {
+            playbackUrl = url;
+            prepareStartTime = Metrics.begin();
+            videoView.setVideoURI(Uri.parse(url));
+        }
+        else {
+            // Coming back from the background to the same stream
+            videoView.start();
+        }
+        videoView.requestFocus();
+    }
+
+    @Override
+    public void onTuneFailed(String title, String message) {
+        Dialog.displayDialog(this, title, message, true);
     }
 
     @SuppressLint("InlinedApi")
@@ -168,22 +289,65 @@ public class PlayerActivity extends AppCompatActivity implements View.OnSystemUi
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        started = true;
+
+        if (playbackUrl == null) {
+            // Display a spinner dialog while transcoding
+            spinner = SpinnerDialog.displayDialog(this, "Loading Channel", "Connecting...", true);
+        }
+
+        if (playbackService != null) {
+            playbackService.setListener(this);
+        }
+
+        if (metricsOverlay.getVisibility() == View.VISIBLE) {
+            updateMetricsOverlay.run();
+        }
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
 
-        // The stream breaks if we pause since the video player closes the connection
-        finish();
+        // The playback service keeps feeding the proxy while we're paused,
+        // so the player can pick up where it left off when we come back
+        videoView.pause();
     }
 
     @Override
     protected void onStop() {
         super.onStop();
 
-        loaderThread.interrupt();
+        started = false;
+        metricsOverlay.removeCallbacks(updateMetricsOverlay);
+
+        if (playbackService != null) {
+            playbackService.setListener(null);
+        }
 
         Dialog.closeDialogs();
         SpinnerDialog.closeDialogs(this);
+        spinner = null;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (channelId == -1) {
+            return;
+        }
+
+        if (playbackService != null && isFinishing()) {
+            // The user left the player, so there's no need to keep streaming
+            playbackService.release(this);
+        }
+
+        unbindService(serviceConnection);
     }
 
     @Override
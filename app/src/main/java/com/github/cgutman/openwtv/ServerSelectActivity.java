@@ -1,26 +1,46 @@
 package com.github.cgutman.openwtv;
 
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 
+import com.github.cgutman.openwtv.cache.DiscoveredServerCache;
+import com.github.cgutman.openwtv.cache.ServerPoolStore;
+import com.github.cgutman.openwtv.protocol.ServerDiscovery;
+import com.github.cgutman.openwtv.protocol.ServerPool;
+import com.github.cgutman.openwtv.protocol.SessionManager;
 import com.github.cgutman.openwtv.utils.Dialog;
+import com.github.cgutman.openwtv.utils.SpinnerDialog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
 
 public class ServerSelectActivity extends AppCompatActivity {
+    private static final String TAG = "OWTV";
 
     private static final String PREFS_NAME = "default";
     private static final String PREF_ADDRESS = "address";
     private static final String PREF_PORT = "port";
     private static final String PREF_PASSWD = "passwd";
 
+    private static final long DISCOVERY_BUDGET_MS = 3000;
+
     private EditText addressText, portText, passwdText;
-    private Button connectButton;
+    private Button connectButton, findButton;
     private SharedPreferences prefs;
 
+    // The scan waits on requests it runs on the AsyncRequest pool, so it gets
+    // its own thread rather than holding one of the pool's
+    private Thread discoveryThread;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -30,6 +50,7 @@ public class ServerSelectActivity extends AppCompatActivity {
         portText = (EditText) findViewById(R.id.portText);
         passwdText = (EditText) findViewById(R.id.passwdText);
         connectButton = (Button) findViewById(R.id.connectButton);
+        findButton = (Button) findViewById(R.id.findButton);
 
         prefs = getSharedPreferences(PREFS_NAME, 0);
 
@@ -61,6 +82,10 @@ public class ServerSelectActivity extends AppCompatActivity {
                     return;
                 }
 
+                // Remember the server so tune-ins can fail over to it later
+                ServerPool.getInstance().add(addressText.getText().toString().trim(), port, passwdText.getText().toString());
+                new ServerPoolStore(ServerSelectActivity.this).save(ServerPool.getInstance());
+
                 // Start the channel list activity
                 Intent intent = new Intent(ServerSelectActivity.this, ChannelListActivity.class);
                 intent.putExtra(ChannelListActivity.ADDRESS_EXTRA, addressText.getText().toString().trim());
@@ -69,6 +94,114 @@ public class ServerSelectActivity extends AppCompatActivity {
                 startActivity(intent);
             }
         });
+
+        findButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                startDiscovery();
+            }
+        });
+    }
+
+    private void startDiscovery() {
+        if (discoveryThread != null) {
+            return;
+        }
+
+        final SpinnerDialog spinner = SpinnerDialog.displayDialog(this, "Finding Servers",
+                "Searching the local network for servers...", false);
+        final DiscoveredServerCache cache = new DiscoveredServerCache(this);
+
+        discoveryThread = new Thread() {
+            @Override
+            public void run() {
+                final Thread self = Thread.currentThread();
+                ServerDiscovery discovery = new ServerDiscovery(SessionManager.getInstance().getTransport());
+
+                List<InetSocketAddress> servers;
+                try {
+                    servers = discovery.discover(cache.load(), ServerDiscovery.DEFAULT_PORT, DISCOVERY_BUDGET_MS);
+                } catch (IOException e) {
+                    Log.w(TAG, "Server discovery failed: "+e.getMessage());
+                    servers = null;
+                }
+
+                if (isInterrupted()) {
+                    return;
+                }
+
+                if (servers != null && !servers.isEmpty()) {
+                    cache.save(servers);
+                }
+
+                final List<InetSocketAddress> result = servers;
+                final boolean complete = discovery.isComplete();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (discoveryThread != self) {
+                            // Cancelled while this was being posted
+                            return;
+                        }
+
+                        spinner.dismiss();
+                        discoveryThread = null;
+                        onDiscoveryFinished(result, complete);
+                    }
+                });
+            }
+        };
+        discoveryThread.setName("Server Discovery");
+        discoveryThread.start();
+    }
+
+    private void onDiscoveryFinished(final List<InetSocketAddress> servers, boolean complete) {
+        if (servers == null) {
+            Dialog.displayDialog(this, "Discovery Failed", "Unable to search the local network.", false);
+        }
+        else if (servers.isEmpty() && !complete) {
+            Dialog.displayDialog(this, "No Servers Found", "No servers answered before the search ran out of time. " +
+                    "Some addresses on the local network weren't checked.", false);
+        }
+        else if (servers.isEmpty()) {
+            Dialog.displayDialog(this, "No Servers Found", "No servers answered on the local network.", false);
+        }
+        else if (servers.size() == 1) {
+            selectServer(servers.get(0));
+        }
+        else {
+            String[] names = new String[servers.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = servers.get(i).getAddress().getHostAddress() + ":" + servers.get(i).getPort();
+            }
+
+            new AlertDialog.Builder(this)
+                    .setTitle("Select a Server")
+                    .setItems(names, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            selectServer(servers.get(which));
+                        }
+                    })
+                    .show();
+        }
+    }
+
+    private void selectServer(InetSocketAddress server) {
+        addressText.setText(server.getAddress().getHostAddress());
+        portText.setText(Integer.toString(server.getPort()));
+        passwdText.requestFocus();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        if (discoveryThread != null) {
+            discoveryThread.interrupt();
+            discoveryThread = null;
+        }
+        SpinnerDialog.closeDialogs(this);
     }
 
     @Override
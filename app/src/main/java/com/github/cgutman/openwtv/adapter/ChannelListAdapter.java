@@ -1,103 +1,266 @@
 package com.github.cgutman.openwtv.adapter;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.github.cgutman.openwtv.R;
+import com.github.cgutman.openwtv.cache.ChannelLogoCache;
+import com.github.cgutman.openwtv.protocol.ChannelRowText;
+import com.github.cgutman.openwtv.protocol.ChannelSearchIndex;
+import com.github.cgutman.openwtv.protocol.ChannelTable;
+import com.github.cgutman.openwtv.protocol.ChannelTableDiff;
 import com.github.cgutman.openwtv.protocol.ExtendConnection;
+import com.github.cgutman.openwtv.protocol.ProgramGuide;
 
-import java.util.ArrayList;
 import java.util.List;
 
-public class ChannelListAdapter extends BaseAdapter {
-    private ArrayList<ExtendConnection.ChannelEntry> list = new ArrayList<>();
+public class ChannelListAdapter extends RecyclerView.Adapter<ChannelListAdapter.ViewHolder> {
+    private ChannelTable table = new ChannelTable(0);
     private LayoutInflater inflater;
     private int layoutId;
+    private OnChannelClickListener clickListener;
+    private ProgramGuide programGuide;
+    private ChannelLogoCache logoCache;
+
+    // While a filter is set, the adapter shows only the rows of the table
+    // listed in filteredRows. The index is built on the first search after
+    // the table changes.
+    private String filter = "";
+    private ChannelSearchIndex searchIndex;
+    private int[] filteredRows = new int[0];
+    private int filteredCount;
+
+    private final ChannelTableDiff.Callback diffCallback = new ChannelTableDiff.Callback() {
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(position, count);
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(position, count);
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            notifyItemRangeChanged(position, count);
+        }
+    };
+
+    public interface OnChannelClickListener {
+        void onChannelClick(ExtendConnection.ChannelEntry channel);
+    }
 
     public ChannelListAdapter(Context context, int layoutId) {
         this.inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         this.layoutId = layoutId;
+
+        // Channel IDs are unique, so the views can follow their channel around
+        setHasStableIds(true);
+    }
+
+    public void setOnChannelClickListener(OnChannelClickListener listener) {
+        this.clickListener = listener;
+    }
+
+    // Shows what's on each channel from the guide, which is read while binding
+    // and so must already have been loaded
+    public void setProgramGuide(ProgramGuide guide) {
+        this.programGuide = guide;
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    public void setLogoCache(ChannelLogoCache cache) {
+        this.logoCache = cache;
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    // Call after the guide has been refreshed or the programs have moved on
+    public void onProgramGuideChanged() {
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    // Shows only the channels matching the query, or all of them if it's empty
+    public void setFilter(CharSequence query) {
+        filter = query.toString();
+        if (isFiltering()) {
+            applyFilter();
+        }
+        notifyDataSetChanged();
+    }
+
+    private boolean isFiltering() {
+        return !filter.isEmpty();
+    }
+
+    private void applyFilter() {
+        if (searchIndex == null) {
+            searchIndex = new ChannelSearchIndex(table);
+        }
+        if (filteredRows.length < table.size()) {
+            filteredRows = new int[table.size()];
+        }
+        filteredCount = searchIndex.search(filter, filteredRows);
+    }
+
+    private int getRow(int position) {
+        return isFiltering() ? filteredRows[position] : position;
     }
 
     public void updateChannelList(List<ExtendConnection.ChannelEntry> newList) {
-        int i, j;
-        boolean dataChanged = false;
-
-        // Check for new channels
-        for (i = 0; i < newList.size(); i++) {
-            boolean found = false;
-
-            // Check the existing list
-            for (j = 0; j < list.size(); j++) {
-                if (newList.get(i).equals(list.get(j))) {
-                    found = true;
-                    break;
-                }
-            }
+        ChannelTable newTable = ChannelTable.fromList(newList);
+        searchIndex = null;
 
-            // New item
-            if (!found) {
-                list.add(newList.get(i));
-                dataChanged = true;
-            }
+        if (isFiltering()) {
+            // Positions in the filtered list don't line up with the table,
+            // so just show the new results
+            table = newTable;
+            applyFilter();
+            notifyDataSetChanged();
+            return;
         }
 
-        // Check for removed channels
-        for (i = 0; i < list.size(); i++) {
-            boolean found = false;
+        boolean reordered = !ChannelTableDiff.diff(table, newTable, diffCallback);
+        table = newTable;
 
-            // Check the existing list
-            for (j = 0; j < newList.size(); j++) {
-                if (newList.get(j).equals(list.get(i))) {
-                    found = true;
-                    break;
-                }
-            }
+        if (reordered) {
+            // There's no cheaper way to show that than starting over
+            notifyDataSetChanged();
+        }
+    }
 
-            // New item
-            if (!found) {
-                list.remove(i);
-                i--;
-                dataChanged = true;
-            }
+    // Adds channels as they arrive from the server, skipping any that are
+    // already shown. Groups are fetched concurrently, so batches from
+    // different groups interleave; each channel goes where it will be in the
+    // final sorted lineup, which keeps the diff against it small.
+    public void appendChannels(List<ExtendConnection.ChannelEntry> batch) {
+        int[] rows = new int[batch.size()];
+        int count = table.insertSorted(batch, rows);
+        if (count == 0) {
+            return;
         }
 
-        if (dataChanged) {
+        searchIndex = null;
+
+        if (isFiltering()) {
+            applyFilter();
             notifyDataSetChanged();
+            return;
+        }
+
+        // The rows are final positions in ascending order, so each run can be
+        // reported as it is and the earlier ones are already accounted for
+        int runStart = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i == count || rows[i] != rows[i - 1] + 1) {
+                notifyItemRangeInserted(rows[runStart], i - runStart);
+                runStart = i;
+            }
         }
     }
 
-    @Override
-    public int getCount() {
-        return list.size();
+    // Returns the IDs of every channel in the lineup, even if they're filtered out
+    public int[] getChannelIds() {
+        return table.getChannelIds();
+    }
+
+    public ExtendConnection.ChannelEntry getItem(int i) {
+        return table.getEntry(getRow(i));
     }
 
     @Override
-    public Object getItem(int i) {
-        return list.get(i);
+    public int getItemCount() {
+        return isFiltering() ? filteredCount : table.size();
     }
 
     @Override
     public long getItemId(int i) {
-        return i;
+        return table.getChannelId(getRow(i));
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup viewGroup, int viewType) {
+        return new ViewHolder(inflater.inflate(layoutId, viewGroup, false));
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        int i = getRow(position);
+        ChannelRowText text = holder.text;
+        text.bind(table, i, programGuide, System.currentTimeMillis());
+
+        holder.channelNumberView.setText(text.getNumberChars(), text.getNumberOffset(), text.getNumberLength());
+        holder.channelNameView.setText(text.getNameChars(), text.getNameOffset(), text.getNameLength());
+        if (text.getProgramLength() == 0) {
+            holder.programView.setVisibility(View.GONE);
+        }
+        else {
+            holder.programView.setText(text.getProgramChars(), 0, text.getProgramLength());
+            holder.programView.setVisibility(View.VISIBLE);
+        }
+
+        bindLogo(holder, table.getChannelId(i));
+    }
+
+    private void bindLogo(ViewHolder holder, int channelId) {
+        // The row may still be waiting on the logo of the channel it showed before
+        holder.cancelLogo();
+
+        holder.logoView.setImageDrawable(null);
+        if (logoCache != null) {
+            holder.logoRequest = logoCache.load(channelId, holder);
+        }
     }
 
     @Override
-    public View getView(int i, View convertView, ViewGroup viewGroup) {
-        if (convertView == null) {
-            convertView = inflater.inflate(layoutId, viewGroup, false);
+    public void onViewRecycled(ViewHolder holder) {
+        holder.cancelLogo();
+    }
+
+    public class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener, ChannelLogoCache.Target {
+        final TextView channelNumberView;
+        final TextView channelNameView;
+        final TextView programView;
+        final ImageView logoView;
+        final ChannelRowText text = new ChannelRowText();
+        ChannelLogoCache.Request logoRequest;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+
+            channelNumberView = (TextView) itemView.findViewById(R.id.channelNumberTextView);
+            channelNameView = (TextView) itemView.findViewById(R.id.channelNameTextView);
+            programView = (TextView) itemView.findViewById(R.id.programTextView);
+            logoView = (ImageView) itemView.findViewById(R.id.channelLogoImageView);
+
+            itemView.setOnClickListener(this);
         }
 
-        TextView channelNumberView = (TextView) convertView.findViewById(R.id.channelNumberTextView);
-        TextView channelNameView = (TextView) convertView.findViewById(R.id.channelNameTextView);
+        void cancelLogo() {
+            if (logoRequest != null) {
+                logoRequest.cancel();
+                logoRequest = null;
+            }
+        }
 
-        channelNumberView.setText(""+list.get(i).number);
-        channelNameView.setText(list.get(i).name);
+        @Override
+        public void onLogoLoaded(Bitmap logo) {
+            logoRequest = null;
+            logoView.setImageBitmap(logo);
+        }
 
-        return convertView;
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && clickListener != null) {
+                clickListener.onChannelClick(getItem(position));
+            }
+        }
     }
 }
@@ -0,0 +1,31 @@
+package com.github.cgutman.openwtv.cache;
+
+import java.io.File;
+import java.io.IOException;
+
+// File naming and replacement shared by the caches that keep a file or
+// directory per server. New contents are written to a temporary file next to
+// the real one and renamed over it, so a crash or failed download can never
+// leave a partial file behind.
+class CacheFiles {
+    private CacheFiles() {}
+
+    // Identifies a server in file names, safe for IPv6 addresses and host names
+    static String serverKey(String address, int port) {
+        return (address + "_" + port).replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    // Creates a file to write the new contents of the file to before calling
+    // replace(). Every call gets a file of its own, so two writers of the same
+    // file can't mix their contents.
+    static File createTempFileFor(File file) throws IOException {
+        return File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+    }
+
+    // Moves the fully written temporary file over the real one
+    static void replace(File tempFile, File file) throws IOException {
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to replace "+file);
+        }
+    }
+}
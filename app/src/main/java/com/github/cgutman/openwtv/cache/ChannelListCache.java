@@ -0,0 +1,98 @@
+package com.github.cgutman.openwtv.cache;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.github.cgutman.openwtv.protocol.ExtendConnection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Stores the last channel list we got from each server in a small binary
+// file, so the list can be shown right away while we check for changes
+public class ChannelListCache {
+    private static final String TAG = "OWTV";
+
+    private static final int MAGIC = 0x4f575443; // "OWTC"
+    private static final int VERSION = 1;
+
+    private final File cacheFile;
+
+    public ChannelListCache(Context context, String address, int port) {
+        this.cacheFile = new File(context.getCacheDir(), "channels-" + CacheFiles.serverKey(address, port) + ".bin");
+    }
+
+    // Returns the cached channel list, or null if there isn't a usable one
+    public List<ExtendConnection.ChannelEntry> load() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            int count = in.readInt();
+            ArrayList<ExtendConnection.ChannelEntry> list = new ArrayList<ExtendConnection.ChannelEntry>(count);
+            for (int i = 0; i < count; i++) {
+                int channelId = in.readInt();
+                String name = in.readUTF();
+                int number = in.readInt();
+                int type = in.readInt();
+                list.add(new ExtendConnection.ChannelEntry(channelId, name, number, type));
+            }
+
+            return list;
+        } catch (IOException e) {
+            // A truncated or corrupt cache just means we wait for the server
+            Log.w(TAG, "Unable to read channel list cache: "+e.getMessage());
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    public void save(List<ExtendConnection.ChannelEntry> list) {
+        File tempFile = null;
+
+        try {
+            tempFile = CacheFiles.createTempFileFor(cacheFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(list.size());
+                for (ExtendConnection.ChannelEntry entry : list) {
+                    out.writeInt(entry.channelId);
+                    out.writeUTF(entry.name != null ? entry.name : "");
+                    out.writeInt(entry.number);
+                    out.writeInt(entry.type);
+                }
+            } finally {
+                out.close();
+            }
+
+            CacheFiles.replace(tempFile, cacheFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write channel list cache: "+e.getMessage());
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+}
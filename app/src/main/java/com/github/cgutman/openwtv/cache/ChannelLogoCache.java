@@ -0,0 +1,322 @@
+package com.github.cgutman.openwtv.cache;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.github.cgutman.openwtv.R;
+import com.github.cgutman.openwtv.protocol.AsyncRequest;
+import com.github.cgutman.openwtv.protocol.ExtendConnection;
+import com.github.cgutman.openwtv.protocol.SessionManager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+
+// Channel logos for the channel list of one server. Logos are downloaded once
+// into a size-bounded directory in the cache, keyed by channel ID, and the
+// least recently used files are deleted when it fills up. Decoded bitmaps,
+// scaled down close to the size they're drawn at, are kept in a memory LRU
+// bounded by their size in bytes.
+//
+// Loads run on the AsyncRequest pool. A second row asking for a logo that's
+// already loading waits for the same load, and a load that no row wants any
+// more is cancelled. Everything except the loads themselves must be called on
+// the UI thread.
+public class ChannelLogoCache {
+    private static final String TAG = "OWTV";
+
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024;
+
+    // Anything bigger than this isn't a channel logo
+    private static final int MAX_LOGO_BYTES = 1024 * 1024;
+
+    public interface Target {
+        // Called on the UI thread with the logo, or null if the channel has none
+        void onLogoLoaded(Bitmap logo);
+    }
+
+    // A row's interest in a logo. Cancel it when the row is bound to another
+    // channel or scrolled away.
+    public class Request {
+        private final int channelId;
+        private final Target target;
+        private boolean cancelled;
+
+        private Request(int channelId, Target target) {
+            this.channelId = channelId;
+            this.target = target;
+        }
+
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+
+            PendingLoad load = pending.get(channelId);
+            if (load != null) {
+                load.waiters.remove(this);
+                if (load.waiters.isEmpty()) {
+                    pending.remove(channelId);
+                    load.request.cancel();
+                }
+            }
+        }
+    }
+
+    private static class PendingLoad {
+        final ArrayList<Request> waiters = new ArrayList<Request>();
+        AsyncRequest<Bitmap> request;
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, Bitmap> memoryCache;
+    private final File logoDir;
+    private final int logoSize;
+    private final String address;
+    private final int port;
+    private final String password;
+
+    // The following are only used on the UI thread
+    private final HashMap<Integer, PendingLoad> pending = new HashMap<Integer, PendingLoad>();
+    private final HashSet<Integer> missing = new HashSet<Integer>();
+
+    public ChannelLogoCache(Context context, String address, int port, String password) {
+        this.address = address;
+        this.port = port;
+        this.password = password;
+        this.logoSize = context.getResources().getDimensionPixelSize(R.dimen.channel_logo_size);
+
+        this.logoDir = new File(context.getCacheDir(), "logos-" + CacheFiles.serverKey(address, port));
+
+        this.memoryCache = new LruCache<Integer, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 16)) {
+            @Override
+            protected int sizeOf(Integer channelId, Bitmap logo) {
+                return logo.getByteCount();
+            }
+        };
+    }
+
+    // Delivers the channel's logo to the target. If it's in memory, that
+    // happens right away and this returns null. Otherwise the logo is loaded
+    // in the background and the returned request can be used to cancel it.
+    public Request load(final int channelId, Target target) {
+        Bitmap logo = memoryCache.get(channelId);
+        if (logo != null || missing.contains(channelId)) {
+            target.onLogoLoaded(logo);
+            return null;
+        }
+
+        Request request = new Request(channelId, target);
+
+        PendingLoad load = pending.get(channelId);
+        if (load == null) {
+            final PendingLoad newLoad = new PendingLoad();
+            newLoad.request = AsyncRequest.execute(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws IOException {
+                    return loadLogo(channelId);
+                }
+            }, new AsyncRequest.Callback<Bitmap>() {
+                @Override
+                public void onSuccess(final Bitmap result) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onLoadFinished(channelId, newLoad, result, false);
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailure(final IOException e) {
+                    if (!(e instanceof FileNotFoundException)) {
+                        Log.w(TAG, "Unable to load logo for channel "+channelId+": "+e.getMessage());
+                    }
+
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Only stop asking if the server says there's no logo
+                            onLoadFinished(channelId, newLoad, null, e instanceof FileNotFoundException);
+                        }
+                    });
+                }
+            });
+
+            load = newLoad;
+            pending.put(channelId, load);
+        }
+
+        load.waiters.add(request);
+        return request;
+    }
+
+    // Cancels every load in progress, for when the list goes away
+    public void cancelAll() {
+        for (PendingLoad load : pending.values()) {
+            for (Request request : load.waiters) {
+                request.cancelled = true;
+            }
+            load.request.cancel();
+        }
+        pending.clear();
+    }
+
+    private void onLoadFinished(int channelId, PendingLoad load, Bitmap logo, boolean noLogo) {
+        if (pending.get(channelId) == load) {
+            pending.remove(channelId);
+        }
+
+        if (logo != null) {
+            memoryCache.put(channelId, logo);
+        }
+        else if (noLogo) {
+            missing.add(channelId);
+        }
+
+        for (Request request : load.waiters) {
+            if (!request.cancelled) {
+                request.target.onLogoLoaded(logo);
+            }
+        }
+    }
+
+    // Runs on the AsyncRequest pool
+    private Bitmap loadLogo(int channelId) throws IOException {
+        File file = new File(logoDir, channelId + ".img");
+
+        if (file.exists()) {
+            // Mark it as recently used
+            file.setLastModified(System.currentTimeMillis());
+        }
+        else {
+            download(channelId, file);
+        }
+
+        Bitmap logo = decode(file);
+        if (logo == null) {
+            // Whatever the server sent, it wasn't an image
+            file.delete();
+            throw new FileNotFoundException("Logo for channel "+channelId+" is not an image");
+        }
+
+        return logo;
+    }
+
+    private void download(int channelId, File file) throws IOException {
+        ExtendConnection connection = SessionManager.getInstance().getConnection(
+                InetAddress.getByName(address), port, password);
+
+        if (!logoDir.isDirectory() && !logoDir.mkdirs()) {
+            throw new IOException("Unable to create "+logoDir);
+        }
+
+        InputStream in = connection.openChannelLogo(channelId);
+        File tempFile = null;
+        try {
+            tempFile = CacheFiles.createTempFileFor(file);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                byte[] buf = new byte[8192];
+                int total = 0;
+                int ret;
+                while ((ret = in.read(buf)) != -1) {
+                    total += ret;
+                    if (total > MAX_LOGO_BYTES) {
+                        throw new IOException("Logo for channel "+channelId+" is too large");
+                    }
+                    out.write(buf, 0, ret);
+                }
+            } finally {
+                out.close();
+            }
+
+            CacheFiles.replace(tempFile, file);
+        } catch (IOException e) {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            throw e;
+        } finally {
+            in.close();
+        }
+
+        trimDiskCache();
+    }
+
+    // Deletes the least recently used logos until the directory fits
+    private void trimDiskCache() {
+        synchronized (ChannelLogoCache.class) {
+            File[] files = logoDir.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            long total = 0;
+            final long[] lastModified = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                total += files[i].length();
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            if (total <= MAX_DISK_BYTES) {
+                return;
+            }
+
+            // Oldest first. The times are read once up front since they can
+            // change while we sort.
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return lastModified[a] < lastModified[b] ? -1 : (lastModified[a] == lastModified[b] ? 0 : 1);
+                }
+            });
+
+            for (int i = 0; i < order.length && total > MAX_DISK_BYTES; i++) {
+                File file = files[order[i]];
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                }
+            }
+        }
+    }
+
+    // Decodes the logo at the smallest power of two scale that's still at
+    // least as big as the row draws it
+    private Bitmap decode(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= logoSize && options.outHeight / (sampleSize * 2) >= logoSize) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.cgutman.openwtv.cache;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+// Remembers the servers found by the last discovery scan, so the next scan
+// can check them before sweeping the rest of the network
+public class DiscoveredServerCache {
+    private static final String PREFS_NAME = "discovery";
+    private static final String PREF_SERVERS = "servers";
+
+    private final SharedPreferences prefs;
+
+    public DiscoveredServerCache(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    public List<InetSocketAddress> load() {
+        ArrayList<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+
+        // Stored as a comma separated list of address:port
+        for (String server : prefs.getString(PREF_SERVERS, "").split(",")) {
+            int colon = server.lastIndexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+
+            try {
+                int port = Integer.parseInt(server.substring(colon + 1));
+                servers.add(new InetSocketAddress(server.substring(0, colon), port));
+            } catch (IllegalArgumentException e) {
+                // Skip anything we can't parse
+            }
+        }
+
+        return servers;
+    }
+
+    public void save(List<InetSocketAddress> servers) {
+        StringBuilder sb = new StringBuilder();
+        for (InetSocketAddress server : servers) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(server.getAddress().getHostAddress()).append(':').append(server.getPort());
+        }
+
+        SharedPreferences.Editor edit = prefs.edit();
+        edit.putString(PREF_SERVERS, sb.toString());
+        edit.apply();
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.cgutman.openwtv.cache;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.github.cgutman.openwtv.protocol.ServerPool;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Saves the servers in the ServerPool to SharedPreferences, so the pool
+// survives the process. Only how to reach each server is saved; its health
+// and load are measured again.
+public class ServerPoolStore {
+    private static final String TAG = "OWTV";
+
+    private static final String PREFS_NAME = "default";
+    private static final String PREF_SERVERS = "servers";
+
+    private final SharedPreferences prefs;
+
+    public ServerPoolStore(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    // Adds the saved servers to the pool
+    public void load(ServerPool pool) {
+        try {
+            JSONArray servers = new JSONArray(prefs.getString(PREF_SERVERS, "[]"));
+            for (int i = 0; i < servers.length(); i++) {
+                JSONObject server = servers.getJSONObject(i);
+                pool.add(server.getString("address"), server.getInt("port"), server.getString("passwd"));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to read saved servers: "+e.getMessage());
+        }
+    }
+
+    public void save(ServerPool pool) {
+        JSONArray servers = new JSONArray();
+        try {
+            for (ServerPool.Server server : pool.getServers()) {
+                JSONObject json = new JSONObject();
+                json.put("address", server.address);
+                json.put("port", server.port);
+                json.put("passwd", server.getPassword());
+                servers.put(json);
+            }
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers
+            throw new IllegalStateException(e);
+        }
+
+        SharedPreferences.Editor edit = prefs.edit();
+        edit.putString(PREF_SERVERS, servers.toString());
+        edit.apply();
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.cgutman.openwtv.hls;
+
+// Chooses which rung of a bitrate ladder to stream at from how fast segments
+// download and how far the read-ahead is ahead of the player. It does no I/O
+// and takes the time from the caller, so a recorded trace of downloads and
+// buffer levels can be replayed through it and always gives the same answers.
+//
+// Throughput is tracked with a fast and a slow moving average and the lower of
+// the two is used, so a drop is noticed quickly but a single fast segment
+// doesn't cause an upgrade. Switches are expensive because the server has to
+// restart the transcode, so there's hysteresis between the up and down
+// thresholds and a minimum time between switches.
+//
+// A rung's bitrate is only what we expect it to stream at. What it actually
+// streams at is measured from the size of its segments as they're played, and
+// decisions use that from then on.
+public class AbrController {
+    // Fraction of the estimated throughput we're willing to use when choosing
+    // a rung, and the fraction the current rung must stay under to keep it
+    private static final double UP_SAFETY_FACTOR = 0.7;
+    private static final double DOWN_SAFETY_FACTOR = 0.9;
+
+    private static final double FAST_HALF_LIFE_MS = 3000;
+    private static final double SLOW_HALF_LIFE_MS = 10000;
+
+    private static final long MIN_UP_INTERVAL_MS = 30000;
+    private static final long MIN_DOWN_INTERVAL_MS = 5000;
+
+    private final double[] bitratesKbps;
+    private final boolean[] measured;
+    private int currentIndex;
+    private long lastSwitchTime;
+
+    private boolean hasEstimate;
+    private double fastEstimateKbps;
+    private double slowEstimateKbps;
+
+    private long bufferedMs;
+    private long lastSegmentDurationMs;
+    private boolean lastSegmentSlow;
+
+    // The rungs must be in increasing quality order, with the bitrate each
+    // is expected to stream at
+    public AbrController(int[] bitratesKbps, int initialIndex, long now) {
+        this.bitratesKbps = new double[bitratesKbps.length];
+        for (int i = 0; i < bitratesKbps.length; i++) {
+            this.bitratesKbps[i] = bitratesKbps[i];
+        }
+        this.measured = new boolean[bitratesKbps.length];
+        this.currentIndex = initialIndex;
+        this.lastSwitchTime = now;
+    }
+
+    private static double decay(double estimate, double sample, double weightMs, double halfLifeMs) {
+        double alpha = Math.pow(0.5, weightMs / halfLifeMs);
+        return alpha * estimate + (1 - alpha) * sample;
+    }
+
+    // Called for each segment downloaded at the current bitrate
+    public void onSegmentDownloaded(long bytes, long downloadMs, long segmentDurationMs) {
+        // Very fast downloads are dominated by timer resolution
+        downloadMs = Math.max(downloadMs, 1);
+
+        double sampleKbps = bytes * 8.0 / downloadMs;
+        if (!hasEstimate) {
+            fastEstimateKbps = sampleKbps;
+            slowEstimateKbps = sampleKbps;
+            hasEstimate = true;
+        }
+        else {
+            // Longer downloads say more about the link, so they count for more
+            fastEstimateKbps = decay(fastEstimateKbps, sampleKbps, downloadMs, FAST_HALF_LIFE_MS);
+            slowEstimateKbps = decay(slowEstimateKbps, sampleKbps, downloadMs, SLOW_HALF_LIFE_MS);
+        }
+
+        if (segmentDurationMs > 0) {
+            // What the current rung really costs to stream
+            double rungKbps = bytes * 8.0 / segmentDurationMs;
+            if (!measured[currentIndex]) {
+                bitratesKbps[currentIndex] = rungKbps;
+                measured[currentIndex] = true;
+            }
+            else {
+                bitratesKbps[currentIndex] = decay(bitratesKbps[currentIndex], rungKbps,
+                        segmentDurationMs, SLOW_HALF_LIFE_MS);
+            }
+        }
+
+        lastSegmentDurationMs = segmentDurationMs;
+        lastSegmentSlow = segmentDurationMs > 0 && downloadMs > segmentDurationMs;
+    }
+
+    // Called with how much media is downloaded but not yet requested by the player
+    public void onBufferLevel(long bufferedMs) {
+        this.bufferedMs = bufferedMs;
+    }
+
+    public long getEstimateKbps() {
+        return hasEstimate ? (long) Math.min(fastEstimateKbps, slowEstimateKbps) : -1;
+    }
+
+    public int getCurrentIndex() {
+        return currentIndex;
+    }
+
+    // The rate the rung streams at, as measured or, until it has been
+    // played, as expected
+    public long getRungKbps(int index) {
+        return (long) bitratesKbps[index];
+    }
+
+    // Highest rung that fits in the given throughput, or the lowest one if
+    // none do. Measured rates needn't increase with quality, so this looks at
+    // every rung.
+    private int highestFitting(double kbps) {
+        int index = 0;
+        for (int i = 0; i < bitratesKbps.length; i++) {
+            if (bitratesKbps[i] <= kbps) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    // Returns the rung we should be streaming at. This doesn't change the
+    // current rung; call onSwitched() once the switch has actually happened.
+    public int chooseIndex(long now) {
+        if (!hasEstimate) {
+            return currentIndex;
+        }
+
+        double estimate = Math.min(fastEstimateKbps, slowEstimateKbps);
+        long sinceSwitch = now - lastSwitchTime;
+
+        // The read-ahead has run dry and segments take longer to download
+        // than to play, so we're about to stall no matter what the average says
+        boolean starving = lastSegmentSlow && bufferedMs == 0;
+
+        if (estimate * DOWN_SAFETY_FACTOR < bitratesKbps[currentIndex] || starving) {
+            if (currentIndex > 0 && sinceSwitch >= MIN_DOWN_INTERVAL_MS) {
+                return Math.min(currentIndex - 1, highestFitting(estimate * UP_SAFETY_FACTOR));
+            }
+            return currentIndex;
+        }
+
+        // Only step up one rung at a time, and only if we're keeping ahead of the player
+        if (currentIndex + 1 < bitratesKbps.length &&
+                estimate * UP_SAFETY_FACTOR >= bitratesKbps[currentIndex + 1] &&
+                bufferedMs >= lastSegmentDurationMs && sinceSwitch >= MIN_UP_INTERVAL_MS) {
+            return currentIndex + 1;
+        }
+
+        return currentIndex;
+    }
+
+    public void onSwitched(int index, long now) {
+        currentIndex = index;
+        lastSwitchTime = now;
+
+        // Throughput measured at the old bitrate still applies, but the
+        // buffer is refilled from scratch on the new stream
+        bufferedMs = 0;
+        lastSegmentSlow = false;
+    }
+}
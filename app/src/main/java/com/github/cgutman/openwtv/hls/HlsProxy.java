@@ -0,0 +1,593 @@
+package com.github.cgutman.openwtv.hls;
+
+import com.github.cgutman.openwtv.protocol.AsyncRequest;
+import com.github.cgutman.openwtv.protocol.ExtendTransport;
+import com.github.cgutman.openwtv.protocol.ProtocolLog;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Loopback HTTP server that sits between the video player and the Extend
+// server. It rewrites the playlist so segments are fetched from us, and reads
+// ahead the next few segments into a bounded memory cache so that a short
+// stall on the server doesn't immediately turn into rebuffering.
+//
+// The upstream stream can be swapped for a new transcode of the same channel
+// without the player noticing more than a discontinuity. While the server
+// restarts, the player is served the last playlist so it keeps playing what's
+// cached, and afterwards the new segments are numbered on from the old ones.
+// As required for a live playlist (RFC 8216 section 6.2.2), we keep count of
+// the discontinuities that have slid out of the window in
+// EXT-X-DISCONTINUITY-SEQUENCE so players can line up refreshed playlists.
+public class HlsProxy {
+    public static final int DEFAULT_PREFETCH_COUNT = 3;
+    public static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private static final String PLAYLIST_PATH = "/playlist.m3u8";
+    private static final String SEGMENT_PREFIX = "/seg/";
+    private static final String SEGMENT_SUFFIX = ".ts";
+
+    // The player keeps a couple of connections open at once, so more than
+    // this means something is misbehaving. Connections beyond the queue are
+    // dropped rather than given a thread each.
+    private static final int MAX_CLIENT_THREADS = 4;
+    private static final int MAX_QUEUED_CLIENTS = 8;
+    private static final long CLIENT_THREAD_KEEPALIVE_MS = 30000;
+
+    private final ExtendTransport transport;
+    private final String playlistUrl;
+    private final int prefetchCount;
+    private final SegmentCache cache;
+    private volatile Listener listener;
+
+    public interface Listener {
+        // Called on the downloading thread after each segment is fetched, with
+        // how much media is now cached ahead of the player
+        void onSegmentDownloaded(long bytes, long downloadMs, long segmentDurationMs, long bufferedMs);
+    }
+
+    // The following are protected by the HlsProxy monitor
+    private final HashMap<Integer, String> segmentUrls = new HashMap<Integer, String>();
+    private final HashSet<Integer> inFlight = new HashSet<Integer>();
+    private final LinkedList<Integer> prefetchQueue = new LinkedList<Integer>();
+    private String mediaPlaylistUrl;
+    private int nextExpectedSequence = -1;
+    private long targetDurationMs;
+
+    // Our segment numbers are the upstream ones plus this offset, which only
+    // changes when the upstream stream is restarted
+    private int sequenceOffset;
+    private int nextLocalSequence;
+
+    // Our segments that start with a discontinuity and are still in the
+    // window, and how many have left it
+    private final TreeSet<Integer> discontinuities = new TreeSet<Integer>();
+    private int discontinuitySequence;
+    private boolean restarting;
+    private boolean pendingRestart;
+    private byte[] lastPlaylist;
+
+    // Downloads from the server run as part of this, so stopping can cancel
+    // them. Interrupting a thread doesn't stop a blocking socket read.
+    private AsyncRequest<Void> upstream;
+    private final HashSet<Socket> clients = new HashSet<Socket>();
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private Thread prefetchThread;
+    private ThreadPoolExecutor clientExecutor;
+    private volatile boolean running;
+
+    public HlsProxy(ExtendTransport transport, String playlistUrl) {
+        this(transport, playlistUrl, DEFAULT_PREFETCH_COUNT, DEFAULT_CACHE_BYTES);
+    }
+
+    public HlsProxy(ExtendTransport transport, String playlistUrl, int prefetchCount, long cacheBytes) {
+        this.transport = transport;
+        this.playlistUrl = playlistUrl;
+        this.prefetchCount = prefetchCount;
+        this.cache = new SegmentCache(cacheBytes);
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        upstream = AsyncRequest.newScope();
+        running = true;
+
+        clientExecutor = new ThreadPoolExecutor(MAX_CLIENT_THREADS, MAX_CLIENT_THREADS,
+                CLIENT_THREAD_KEEPALIVE_MS, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CLIENTS), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "HLS Proxy Client");
+            }
+        });
+        clientExecutor.allowCoreThreadTimeOut(true);
+
+        acceptThread = new Thread("HLS Proxy") {
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.start();
+
+        prefetchThread = new Thread("HLS Prefetch") {
+            public void run() {
+                prefetchLoop();
+            }
+        };
+        prefetchThread.start();
+    }
+
+    public void stop() {
+        running = false;
+
+        ArrayList<Socket> toClose;
+        synchronized (this) {
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException ignored) {}
+            }
+            if (prefetchThread != null) {
+                prefetchThread.interrupt();
+            }
+            if (clientExecutor != null) {
+                clientExecutor.shutdownNow();
+            }
+
+            // Drops the connections of any downloads in progress
+            if (upstream != null) {
+                upstream.cancel();
+            }
+
+            toClose = new ArrayList<Socket>(clients);
+            clients.clear();
+
+            prefetchQueue.clear();
+            segmentUrls.clear();
+            notifyAll();
+        }
+
+        // A client thread may be blocked writing to the player
+        for (Socket client : toClose) {
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+        }
+
+        cache.clear();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Called before the upstream transcode is restarted. Until finishRestart()
+    // the player keeps getting the last playlist we served.
+    public synchronized void beginRestart() {
+        restarting = true;
+    }
+
+    // Called once the restarted transcode has segments available
+    public synchronized void finishRestart() {
+        if (restarting) {
+            restarting = false;
+            pendingRestart = true;
+
+            // The variant URL may have changed with the new profile
+            mediaPlaylistUrl = null;
+        }
+    }
+
+    public String getLocalUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + PLAYLIST_PATH;
+    }
+
+    // Fetches the upstream playlist without a player request, which keeps the
+    // server streaming and lets read-ahead continue while the player is away
+    public void refreshPlaylist() throws IOException {
+        getRewrittenPlaylist();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    ProtocolLog.w("HLS proxy accept failed", e);
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (!running) {
+                    closeQuietly(client);
+                    return;
+                }
+                clients.add(client);
+            }
+
+            try {
+                clientExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handleClient(client);
+                        } catch (IOException e) {
+                            ProtocolLog.w("HLS proxy request failed: "+e.getMessage());
+                        } finally {
+                            removeClient(client);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                ProtocolLog.w("HLS proxy has too many connections, dropping one");
+                removeClient(client);
+            }
+        }
+    }
+
+    private void removeClient(Socket client) {
+        synchronized (this) {
+            clients.remove(client);
+        }
+        closeQuietly(client);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void handleClient(Socket client) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+        OutputStream out = client.getOutputStream();
+
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+
+        // Skip the headers since we don't need any of them
+        String header;
+        do {
+            header = reader.readLine();
+        } while (header != null && !header.isEmpty());
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !parts[0].equals("GET")) {
+            sendResponse(out, "405 Method Not Allowed", "text/plain", new byte[0]);
+            return;
+        }
+
+        String path = parts[1];
+        try {
+            if (path.equals(PLAYLIST_PATH)) {
+                sendResponse(out, "200 OK", "application/vnd.apple.mpegurl", getRewrittenPlaylist());
+            }
+            else if (path.startsWith(SEGMENT_PREFIX) && path.endsWith(SEGMENT_SUFFIX)) {
+                int sequence;
+                try {
+                    sequence = Integer.parseInt(path.substring(SEGMENT_PREFIX.length(),
+                            path.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    sendResponse(out, "404 Not Found", "text/plain", new byte[0]);
+                    return;
+                }
+
+                byte[] segment = getSegment(sequence);
+
+                // Start reading ahead while this one is sent to the player
+                synchronized (this) {
+                    if (sequence + 1 > nextExpectedSequence) {
+                        nextExpectedSequence = sequence + 1;
+                    }
+                    schedulePrefetch(sequence + 1);
+                }
+
+                sendResponse(out, "200 OK", "video/mp2t", segment);
+            }
+            else {
+                sendResponse(out, "404 Not Found", "text/plain", new byte[0]);
+            }
+        } catch (FileNotFoundException e) {
+            sendResponse(out, "404 Not Found", "text/plain", new byte[0]);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            sendResponse(out, "502 Bad Gateway", "text/plain", new byte[0]);
+        }
+    }
+
+    private static void sendResponse(OutputStream out, String status, String contentType, byte[] body) throws IOException {
+        String headers = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: close\r\n\r\n";
+        out.write(headers.getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+    }
+
+    private byte[] download(final String url) throws IOException {
+        AsyncRequest<Void> scope;
+        synchronized (this) {
+            scope = upstream;
+        }
+        if (scope == null) {
+            return downloadNow(url);
+        }
+
+        byte[] data = scope.runInline(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return downloadNow(url);
+            }
+        });
+
+        // A dropped connection can look like the end of the response
+        if (scope.isCancelled()) {
+            throw new InterruptedIOException("HLS proxy was stopped");
+        }
+        return data;
+    }
+
+    private byte[] downloadNow(String url) throws IOException {
+        InputStream in = transport.get(url);
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buf = new byte[16384];
+            int ret;
+            while ((ret = in.read(buf)) != -1) {
+                data.write(buf, 0, ret);
+            }
+            return data.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] getRewrittenPlaylist() throws IOException {
+        String url;
+        synchronized (this) {
+            if (restarting && lastPlaylist != null) {
+                return lastPlaylist;
+            }
+            url = mediaPlaylistUrl;
+        }
+
+        byte[] data = download(url != null ? url : playlistUrl);
+        Playlist playlist = Playlist.parse(new ByteArrayInputStream(data));
+
+        // The player only needs the media playlist, so resolve a master
+        // playlist to its first variant once and remember it
+        if (playlist.isMasterPlaylist()) {
+            url = Playlist.resolveUri(playlistUrl, playlist.variantUris.get(0));
+            data = download(url);
+            playlist = Playlist.parse(new ByteArrayInputStream(data));
+        }
+        else if (url == null) {
+            url = playlistUrl;
+        }
+
+        StringBuilder rewritten = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), "UTF-8"));
+        boolean expectSegment = false;
+
+        synchronized (this) {
+            mediaPlaylistUrl = url;
+
+            if (pendingRestart) {
+                // Carry on numbering from where the old stream ended, and tell
+                // the player that the encoding changes there
+                sequenceOffset = nextLocalSequence - playlist.mediaSequence;
+                discontinuities.add(nextLocalSequence);
+                pendingRestart = false;
+            }
+
+            int firstSequence = playlist.mediaSequence + sequenceOffset;
+            int sequence = firstSequence;
+            targetDurationMs = playlist.targetDuration * 1000L;
+
+            // Count the discontinuities whose segments have left the window
+            while (!discontinuities.isEmpty() && discontinuities.first() < firstSequence) {
+                discontinuities.pollFirst();
+                discontinuitySequence++;
+            }
+
+            boolean wroteDiscontinuitySequence = false;
+            boolean upstreamDiscontinuity = false;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+
+                if (expectSegment && !trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    segmentUrls.put(sequence, Playlist.resolveUri(url, trimmed));
+                    rewritten.append(SEGMENT_PREFIX.substring(1)).append(sequence).append(SEGMENT_SUFFIX);
+                    sequence++;
+                    expectSegment = false;
+                }
+                else if (trimmed.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                    rewritten.append("#EXT-X-MEDIA-SEQUENCE:").append(firstSequence).append('\n');
+                    rewritten.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence);
+                    wroteDiscontinuitySequence = true;
+                }
+                else if (trimmed.startsWith("#EXT-X-DISCONTINUITY-SEQUENCE:")) {
+                    // Replaced by ours, which also counts the upstream ones
+                    continue;
+                }
+                else if (trimmed.equals("#EXT-X-DISCONTINUITY")) {
+                    // Written along with our own below so it isn't doubled
+                    upstreamDiscontinuity = true;
+                    continue;
+                }
+                else {
+                    if (trimmed.startsWith("#EXTINF:")) {
+                        if (!wroteDiscontinuitySequence) {
+                            // It has to come before the first segment
+                            rewritten.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+                            wroteDiscontinuitySequence = true;
+                        }
+                        if (upstreamDiscontinuity) {
+                            discontinuities.add(sequence);
+                            upstreamDiscontinuity = false;
+                        }
+                        if (discontinuities.contains(sequence)) {
+                            rewritten.append("#EXT-X-DISCONTINUITY\n");
+                        }
+                        expectSegment = true;
+                    }
+                    rewritten.append(line);
+                }
+                rewritten.append('\n');
+            }
+            nextLocalSequence = Math.max(nextLocalSequence, sequence);
+
+            // Forget segments that have slid out of the live window, except
+            // ones the player hasn't got to yet after a restart
+            int oldestNeeded = nextExpectedSequence >= 0 ?
+                    Math.min(firstSequence, nextExpectedSequence) : firstSequence;
+            Iterator<Integer> i = segmentUrls.keySet().iterator();
+            while (i.hasNext()) {
+                if (i.next() < oldestNeeded) {
+                    i.remove();
+                }
+            }
+            cache.trimBefore(oldestNeeded);
+
+            schedulePrefetch(nextExpectedSequence >= firstSequence ?
+                    nextExpectedSequence : firstSequence);
+
+            lastPlaylist = rewritten.toString().getBytes("UTF-8");
+            return lastPlaylist;
+        }
+    }
+
+    // Returns the segment from the cache, waiting for an in-flight download
+    // of it or downloading it ourselves if nobody has it yet
+    private byte[] getSegment(int sequence) throws IOException {
+        String url;
+
+        synchronized (this) {
+            for (;;) {
+                byte[] data = cache.get(sequence);
+                if (data != null) {
+                    return data;
+                }
+                if (!inFlight.contains(sequence)) {
+                    break;
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            url = segmentUrls.get(sequence);
+            if (url == null) {
+                throw new FileNotFoundException("Segment "+sequence+" is not in the playlist");
+            }
+            inFlight.add(sequence);
+        }
+
+        try {
+            long start = System.nanoTime();
+            byte[] data = download(url);
+            long downloadMs = (System.nanoTime() - start) / 1000000;
+            cache.put(sequence, data);
+
+            Listener l = listener;
+            if (l != null) {
+                long segmentDurationMs;
+                long bufferedMs;
+                synchronized (this) {
+                    segmentDurationMs = targetDurationMs;
+                    bufferedMs = nextExpectedSequence >= 0 ?
+                            cache.countFrom(nextExpectedSequence) * targetDurationMs : 0;
+                }
+                l.onSegmentDownloaded(data.length, downloadMs, segmentDurationMs, bufferedMs);
+            }
+
+            return data;
+        } finally {
+            synchronized (this) {
+                inFlight.remove(sequence);
+                notifyAll();
+            }
+        }
+    }
+
+    // Must be called with the HlsProxy monitor held
+    private void schedulePrefetch(int firstSequence) {
+        for (int sequence = firstSequence; sequence < firstSequence + prefetchCount; sequence++) {
+            if (segmentUrls.containsKey(sequence) && !cache.contains(sequence) &&
+                    !inFlight.contains(sequence) && !prefetchQueue.contains(sequence)) {
+                prefetchQueue.add(sequence);
+            }
+        }
+
+        notifyAll();
+    }
+
+    private void prefetchLoop() {
+        while (running) {
+            int sequence;
+
+            synchronized (this) {
+                while (running && prefetchQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+
+                sequence = prefetchQueue.removeFirst();
+            }
+
+            try {
+                getSegment(sequence);
+            } catch (InterruptedIOException e) {
+                return;
+            } catch (IOException e) {
+                ProtocolLog.w("Prefetch of segment "+sequence+" failed: "+e.getMessage());
+            }
+        }
+    }
+}
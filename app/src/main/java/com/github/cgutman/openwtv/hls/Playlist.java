@@ -0,0 +1,96 @@
+package com.github.cgutman.openwtv.hls;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+// Minimal M3U8 parser covering the tags the Extend server emits
+public class Playlist {
+    public final List<String> segmentUris;
+    public final List<String> variantUris;
+    public final int mediaSequence;
+    public final int targetDuration;
+    public final boolean ended;
+
+    private Playlist(List<String> segmentUris, List<String> variantUris,
+                     int mediaSequence, int targetDuration, boolean ended) {
+        this.segmentUris = segmentUris;
+        this.variantUris = variantUris;
+        this.mediaSequence = mediaSequence;
+        this.targetDuration = targetDuration;
+        this.ended = ended;
+    }
+
+    public boolean isMasterPlaylist() {
+        return !variantUris.isEmpty();
+    }
+
+    public static Playlist parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        ArrayList<String> segmentUris = new ArrayList<String>();
+        ArrayList<String> variantUris = new ArrayList<String>();
+        int mediaSequence = 0;
+        int targetDuration = 0;
+        boolean ended = false;
+
+        boolean expectSegment = false;
+        boolean expectVariant = false;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (line.startsWith("#")) {
+                if (line.startsWith("#EXTINF:")) {
+                    expectSegment = true;
+                }
+                else if (line.startsWith("#EXT-X-STREAM-INF:")) {
+                    expectVariant = true;
+                }
+                else if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                    mediaSequence = parseInt(line.substring("#EXT-X-MEDIA-SEQUENCE:".length()));
+                }
+                else if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+                    targetDuration = parseInt(line.substring("#EXT-X-TARGETDURATION:".length()));
+                }
+                else if (line.equals("#EXT-X-ENDLIST")) {
+                    ended = true;
+                }
+            }
+            else if (expectVariant) {
+                variantUris.add(line);
+                expectVariant = false;
+            }
+            else if (expectSegment) {
+                segmentUris.add(line);
+                expectSegment = false;
+            }
+        }
+
+        return new Playlist(segmentUris, variantUris, mediaSequence, targetDuration, ended);
+    }
+
+    private static int parseInt(String str) throws IOException {
+        try {
+            return Integer.parseInt(str.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in playlist: "+str);
+        }
+    }
+
+    public static String resolveUri(String baseUrl, String uri) throws IOException {
+        try {
+            return new URL(new URL(baseUrl), uri).toString();
+        } catch (MalformedURLException e) {
+            throw new IOException(e);
+        }
+    }
+}
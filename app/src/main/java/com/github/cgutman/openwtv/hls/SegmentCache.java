@@ -0,0 +1,64 @@
+package com.github.cgutman.openwtv.hls;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Bounded in-memory store of downloaded segments keyed by media sequence number.
+// When the byte budget is exceeded, the oldest segments are dropped first so the
+// cache behaves like a ring buffer that follows the live edge of the stream.
+class SegmentCache {
+    private final long maxBytes;
+    private final TreeMap<Integer, byte[]> segments = new TreeMap<Integer, byte[]>();
+    private long currentBytes;
+
+    SegmentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized byte[] get(int sequence) {
+        return segments.get(sequence);
+    }
+
+    synchronized boolean contains(int sequence) {
+        return segments.containsKey(sequence);
+    }
+
+    synchronized void put(int sequence, byte[] data) {
+        byte[] old = segments.put(sequence, data);
+        if (old != null) {
+            currentBytes -= old.length;
+        }
+        currentBytes += data.length;
+
+        // Evict from the oldest end, but never the segment we just added
+        Iterator<Map.Entry<Integer, byte[]>> i = segments.entrySet().iterator();
+        while (currentBytes > maxBytes && i.hasNext()) {
+            Map.Entry<Integer, byte[]> entry = i.next();
+            if (entry.getKey() == sequence) {
+                break;
+            }
+            currentBytes -= entry.getValue().length;
+            i.remove();
+        }
+    }
+
+    // Number of segments at or after the given sequence number
+    synchronized int countFrom(int sequence) {
+        return segments.tailMap(sequence).size();
+    }
+
+    // Drops everything older than the given sequence number
+    synchronized void trimBefore(int sequence) {
+        Iterator<Map.Entry<Integer, byte[]>> i = segments.headMap(sequence).entrySet().iterator();
+        while (i.hasNext()) {
+            currentBytes -= i.next().getValue().length;
+            i.remove();
+        }
+    }
+
+    synchronized void clear() {
+        segments.clear();
+        currentBytes = 0;
+    }
+}
@@ -0,0 +1,249 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Runs blocking Extend work on a small shared pool and lets the caller cancel
+// it. Interrupting a thread doesn't stop a blocking socket read, so transports
+// register the connections they open with the request they're running under,
+// and cancelling the request closes them. That makes the read fail right away
+// and the worker is free for the next request.
+//
+// These tasks get their own pool rather than sharing the one ExtendConnection
+// fans requests out on, so they can't take the threads their fanned out
+// requests need. The fanned out requests never wait on that pool themselves:
+// anything they fan out again runs on their own thread. Every thread a task
+// waits for is therefore running a request that can finish without waiting
+// for another thread.
+public class AsyncRequest<T> {
+    private static final int THREAD_COUNT = 4;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Extend Async");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Closing a connection can block for a while on some platforms, so it's
+    // never done on the thread that asked for the cancellation
+    private static final ExecutorService closeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Extend Cancel");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final ThreadLocal<AsyncRequest<?>> current = new ThreadLocal<AsyncRequest<?>>();
+
+    public interface Callback<T> {
+        // Called on the worker thread. Neither method is called once the
+        // request has been cancelled.
+        void onSuccess(T result);
+        void onFailure(IOException e);
+    }
+
+    // The following are protected by the AsyncRequest monitor
+    private final HashSet<Closeable> connections = new HashSet<Closeable>();
+    private Future<?> future;
+    private boolean cancelled;
+
+    private AsyncRequest() {}
+
+    // Runs the task on the shared pool and reports the result to the callback,
+    // which may be null
+    public static <T> AsyncRequest<T> execute(final Callable<T> task, final Callback<T> callback) {
+        final AsyncRequest<T> request = new AsyncRequest<T>();
+
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                request.run(task, callback);
+            }
+        });
+
+        synchronized (request) {
+            request.future = future;
+            if (request.cancelled) {
+                future.cancel(true);
+            }
+        }
+
+        return request;
+    }
+
+    // Returns a request with no task of its own. Work passed to runInline()
+    // on any thread is part of it, so cancelling it stops all of that work.
+    public static AsyncRequest<Void> newScope() {
+        return new AsyncRequest<Void>();
+    }
+
+    // Runs the task on the calling thread as part of this request, in place of
+    // any request the thread was already running
+    public <V> V runInline(Callable<V> task) throws IOException {
+        AsyncRequest<?> previous = current.get();
+
+        current.set(this);
+        try {
+            return task.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            if (previous != null) {
+                current.set(previous);
+            }
+            else {
+                current.remove();
+            }
+        }
+    }
+
+    // Returns the request the calling thread is working on, or null if it isn't
+    // running one
+    public static AsyncRequest<?> getCurrent() {
+        return current.get();
+    }
+
+    private void run(Callable<T> task, Callback<T> callback) {
+        T result;
+
+        current.set(this);
+        try {
+            result = task.call();
+        } catch (IOException e) {
+            if (callback != null && !isCancelled()) {
+                callback.onFailure(e);
+            }
+            return;
+        } catch (RuntimeException e) {
+            // A bug rather than a network problem, but the caller still needs
+            // to hear that the request is over. Nobody looks at the Future, so
+            // rethrowing would lose it.
+            ProtocolLog.w("Request failed with an unexpected exception", e);
+            if (callback != null && !isCancelled()) {
+                callback.onFailure(new IOException(e));
+            }
+            return;
+        } catch (Exception e) {
+            if (callback != null && !isCancelled()) {
+                callback.onFailure(new IOException(e));
+            }
+            return;
+        } finally {
+            current.remove();
+            closeConnections();
+        }
+
+        if (callback != null && !isCancelled()) {
+            callback.onSuccess(result);
+        }
+    }
+
+    // Stops the request. Anything it's blocked reading from the server fails
+    // immediately and its callback won't be called.
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        closeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeConnections();
+            }
+        });
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    // True once the task has finished running or has been cancelled
+    public synchronized boolean isDone() {
+        return cancelled || (future != null && future.isDone());
+    }
+
+    private void closeConnections() {
+        ArrayList<Closeable> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<Closeable>(connections);
+            connections.clear();
+        }
+
+        for (Closeable connection : toClose) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // Transports call this when they open a connection, so it can be closed if
+    // the request running on this thread is cancelled. Returns the request to
+    // detach the connection from later, or null if there isn't one. If the
+    // request has already been cancelled, the connection is closed and this throws.
+    static AsyncRequest<?> attachConnection(Closeable connection) throws IOException {
+        AsyncRequest<?> request = current.get();
+        if (request == null) {
+            return null;
+        }
+
+        synchronized (request) {
+            if (!request.cancelled) {
+                request.connections.add(connection);
+                return request;
+            }
+        }
+
+        connection.close();
+        throw new InterruptedIOException("Request was cancelled");
+    }
+
+    // Called by transports when they're done with a connection
+    synchronized void detachConnection(Closeable connection) {
+        connections.remove(connection);
+    }
+
+    // Wraps a task so it runs as part of the calling thread's request, if any,
+    // even when it's executed on another thread
+    static <V> Callable<V> inheritCurrent(final Callable<V> task) {
+        final AsyncRequest<?> request = current.get();
+        if (request == null) {
+            return task;
+        }
+
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                current.set(request);
+                try {
+                    return task.call();
+                } finally {
+                    current.remove();
+                }
+            }
+        };
+    }
+}
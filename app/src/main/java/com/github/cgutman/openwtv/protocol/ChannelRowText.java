@@ -0,0 +1,90 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.util.Arrays;
+
+// The text of one row of the channel list, as char ranges that a TextView
+// shows without copying. The number and name are ranges of the table's own
+// arrays, and the program text is built in an array owned by the row, so
+// binding a row doesn't allocate once that array is big enough.
+//
+// This is kept apart from the adapter so that it can be measured off the
+// device.
+public class ChannelRowText {
+    private ChannelTable table;
+    private int row;
+    private char[] programChars = new char[96];
+    private int programLength;
+
+    // Points the text at the row and builds the program text from the guide,
+    // which may be null
+    public void bind(ChannelTable table, int row, ProgramGuide guide, long time) {
+        this.table = table;
+        this.row = row;
+
+        String now = null;
+        String next = null;
+        if (guide != null) {
+            int channelId = table.getChannelId(row);
+            now = guide.getNowTitle(channelId, time);
+            next = guide.getNextTitle(channelId, time);
+        }
+
+        int length = 0;
+        if (now != null) {
+            length = appendProgramText(length, "Now: ");
+            length = appendProgramText(length, now);
+        }
+        if (next != null) {
+            if (length > 0) {
+                length = appendProgramText(length, "\n");
+            }
+            length = appendProgramText(length, "Next: ");
+            length = appendProgramText(length, next);
+        }
+        programLength = length;
+    }
+
+    // Copies the text into programChars at the given offset, growing it if
+    // needed, and returns the offset after it
+    private int appendProgramText(int offset, String text) {
+        int end = offset + text.length();
+        if (end > programChars.length) {
+            programChars = Arrays.copyOf(programChars, Math.max(programChars.length * 2, end));
+        }
+        text.getChars(0, text.length(), programChars, offset);
+        return end;
+    }
+
+    public char[] getNumberChars() {
+        return table.getNumberChars();
+    }
+
+    public int getNumberOffset() {
+        return table.getNumberOffset(row);
+    }
+
+    public int getNumberLength() {
+        return table.getNumberLength(row);
+    }
+
+    public char[] getNameChars() {
+        return table.getNameChars();
+    }
+
+    public int getNameOffset() {
+        return table.getNameOffset(row);
+    }
+
+    public int getNameLength() {
+        return table.getNameLength(row);
+    }
+
+    // Empty if the guide has nothing for the channel
+    public char[] getProgramChars() {
+        return programChars;
+    }
+
+    public int getProgramLength() {
+        return programLength;
+    }
+}
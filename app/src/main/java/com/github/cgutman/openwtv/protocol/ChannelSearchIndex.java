@@ -0,0 +1,236 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Search index over a ChannelTable for type-ahead filtering. Queries made up
+// of digits match channels whose number starts with them, so "5", "52" and
+// "521" narrow down as they're typed. Anything else matches channels with a
+// word in their name that starts with the query, ignoring case.
+//
+// Both lookups are binary searches over arrays sorted when the index is
+// built, so a query costs O(log n + matches) and doesn't allocate. The index
+// has to be rebuilt if the table changes, and it isn't safe to search from
+// more than one thread at a time.
+public class ChannelSearchIndex {
+    private final ChannelTable table;
+
+    // Rows sorted by the text of their channel number
+    private final int[] rowsByNumber;
+
+    // Lower-cased copy of the table's names, and the position in it of the
+    // start of every word sorted by the text that follows it
+    private final char[] foldedNames;
+    private final int[] wordStarts;
+    private final int[] wordEnds;
+    private final int[] wordRows;
+
+    // A name can match more than once, so word matches are collected here
+    // before the duplicates are removed
+    private final int[] wordMatches;
+
+    // Set for each matched row while the matches are put back in list order.
+    // Sorting them would be simpler, but Arrays.sort() allocates a merge
+    // buffer when the matches come in runs, and they usually do.
+    private final boolean[] rowMatched;
+
+    public ChannelSearchIndex(final ChannelTable table) {
+        this.table = table;
+
+        final char[] numberChars = table.getNumberChars();
+        Integer[] numberOrder = new Integer[table.size()];
+        for (int i = 0; i < numberOrder.length; i++) {
+            numberOrder[i] = i;
+        }
+        Arrays.sort(numberOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareRanges(numberChars, table.getNumberOffset(a), table.getNumberLength(a),
+                        numberChars, table.getNumberOffset(b), table.getNumberLength(b));
+            }
+        });
+        rowsByNumber = new int[numberOrder.length];
+        for (int i = 0; i < rowsByNumber.length; i++) {
+            rowsByNumber[i] = numberOrder[i];
+        }
+
+        char[] names = table.getNameChars();
+        foldedNames = new char[names.length];
+        for (int i = 0; i < names.length; i++) {
+            foldedNames[i] = Character.toLowerCase(names[i]);
+        }
+
+        // Find where each word starts. A search can run past the end of the
+        // word, so "fox ne" still matches "FOX News".
+        int wordCount = 0;
+        int[] starts = new int[table.size() * 2];
+        int[] rows = new int[starts.length];
+        for (int row = 0; row < table.size(); row++) {
+            int offset = table.getNameOffset(row);
+            int end = offset + table.getNameLength(row);
+            for (int i = offset; i < end; i++) {
+                if (Character.isLetterOrDigit(foldedNames[i]) &&
+                        (i == offset || !Character.isLetterOrDigit(foldedNames[i - 1]))) {
+                    if (wordCount == starts.length) {
+                        starts = Arrays.copyOf(starts, wordCount * 2);
+                        rows = Arrays.copyOf(rows, wordCount * 2);
+                    }
+                    starts[wordCount] = i;
+                    rows[wordCount] = row;
+                    wordCount++;
+                }
+            }
+        }
+
+        final int[] unsortedStarts = starts;
+        final int[] unsortedRows = rows;
+        Integer[] wordOrder = new Integer[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            wordOrder[i] = i;
+        }
+        Arrays.sort(wordOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareRanges(foldedNames, unsortedStarts[a], wordLength(unsortedStarts[a], unsortedRows[a]),
+                        foldedNames, unsortedStarts[b], wordLength(unsortedStarts[b], unsortedRows[b]));
+            }
+        });
+        wordStarts = new int[wordCount];
+        wordEnds = new int[wordCount];
+        wordRows = new int[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            int word = wordOrder[i];
+            wordStarts[i] = unsortedStarts[word];
+            wordRows[i] = unsortedRows[word];
+            wordEnds[i] = table.getNameOffset(wordRows[i]) + table.getNameLength(wordRows[i]);
+        }
+        wordMatches = new int[wordCount];
+        rowMatched = new boolean[table.size()];
+    }
+
+    // Length of the rest of the name from the start of a word
+    private int wordLength(int start, int row) {
+        return table.getNameOffset(row) + table.getNameLength(row) - start;
+    }
+
+    private static int compareRanges(char[] a, int aOffset, int aLength, char[] b, int bOffset, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            char ca = a[aOffset + i];
+            char cb = b[bOffset + i];
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    // Compares the start of a range with the query. Returns 0 if the range
+    // starts with the query, so matches are contiguous in a sorted array.
+    private static int comparePrefix(char[] chars, int offset, int length, CharSequence query, boolean fold) {
+        int queryLength = query.length();
+        int compareLength = Math.min(length, queryLength);
+        for (int i = 0; i < compareLength; i++) {
+            char c = chars[offset + i];
+            char q = fold ? Character.toLowerCase(query.charAt(i)) : query.charAt(i);
+            if (c != q) {
+                return c - q;
+            }
+        }
+        return length < queryLength ? -1 : 0;
+    }
+
+    private static boolean isNumberQuery(CharSequence query) {
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Finds the rows matching the query and writes them to results in
+    // ascending order. The results array must have room for every row in the
+    // table. Returns the number of matching rows.
+    public int search(CharSequence query, int[] results) {
+        if (query.length() == 0) {
+            for (int i = 0; i < table.size(); i++) {
+                results[i] = i;
+            }
+            return table.size();
+        }
+
+        int[] matches;
+        int count = 0;
+
+        if (isNumberQuery(query)) {
+            matches = results;
+            char[] numberChars = table.getNumberChars();
+
+            // Lower bound of the rows whose number starts with the query
+            int low = 0;
+            int high = rowsByNumber.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int row = rowsByNumber[mid];
+                if (comparePrefix(numberChars, table.getNumberOffset(row), table.getNumberLength(row), query, false) < 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+
+            for (int i = low; i < rowsByNumber.length; i++) {
+                int row = rowsByNumber[i];
+                if (comparePrefix(numberChars, table.getNumberOffset(row), table.getNumberLength(row), query, false) != 0) {
+                    break;
+                }
+                matches[count++] = row;
+            }
+        }
+        else {
+            matches = wordMatches;
+            int low = 0;
+            int high = wordStarts.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (comparePrefix(foldedNames, wordStarts[mid], wordEnds[mid] - wordStarts[mid], query, true) < 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+
+            for (int i = low; i < wordStarts.length; i++) {
+                if (comparePrefix(foldedNames, wordStarts[i], wordEnds[i] - wordStarts[i], query, true) != 0) {
+                    break;
+                }
+                matches[count++] = wordRows[i];
+            }
+        }
+
+        // Put the matches back in list order, dropping rows matched by more
+        // than one word. Only the span of rows that matched is swept.
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            int row = matches[i];
+            rowMatched[row] = true;
+            first = Math.min(first, row);
+            last = Math.max(last, row);
+        }
+
+        int unique = 0;
+        for (int row = first; row <= last; row++) {
+            if (rowMatched[row]) {
+                rowMatched[row] = false;
+                results[unique++] = row;
+            }
+        }
+
+        return unique;
+    }
+}
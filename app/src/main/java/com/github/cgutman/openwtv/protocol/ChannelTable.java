@@ -0,0 +1,277 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.utils.IntIntMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Column-oriented store for a channel lineup. Each channel is a row in a set
+// of parallel int arrays, and all of the names share a single char array,
+// so a large lineup costs a handful of arrays rather than several objects
+// per channel. Rows are looked up by channel ID through an int-keyed index.
+public class ChannelTable {
+    private int[] ids;
+    private int[] numbers;
+    private int[] types;
+    private int[] nameOffsets;
+    private int[] nameLengths;
+    private char[] names;
+    private int namesLength;
+    private int[] numberOffsets;
+    private int[] numberLengths;
+    private char[] numberText;
+    private int numberTextLength;
+    private int size;
+
+    private final IntIntMap rowById;
+
+    public ChannelTable(int capacity) {
+        capacity = Math.max(capacity, 16);
+
+        ids = new int[capacity];
+        numbers = new int[capacity];
+        types = new int[capacity];
+        nameOffsets = new int[capacity];
+        nameLengths = new int[capacity];
+        numberOffsets = new int[capacity];
+        numberLengths = new int[capacity];
+
+        // Most channel names are short
+        names = new char[capacity * 12];
+        numberText = new char[capacity * 4];
+
+        rowById = new IntIntMap(capacity);
+    }
+
+    public static ChannelTable fromList(List<ExtendConnection.ChannelEntry> list) {
+        ChannelTable table = new ChannelTable(list.size());
+        for (ExtendConnection.ChannelEntry entry : list) {
+            table.add(entry.channelId, entry.name, entry.number, entry.type);
+        }
+        return table;
+    }
+
+    // Adds a channel and returns its row, or -1 if the channel is already present
+    public int add(int channelId, String name, int number, int type) {
+        if (rowById.containsKey(channelId)) {
+            return -1;
+        }
+
+        ensureCapacity(size + 1);
+
+        int row = size++;
+        setRow(row, channelId, name, number, type);
+        rowById.put(channelId, row);
+        return row;
+    }
+
+    // Adds the channels that aren't already present where they belong in a
+    // table sorted by number and then ID, which this one must already be. The
+    // rows they end up in are written to rowsOut in ascending order, and the
+    // number of channels added is returned.
+    public int insertSorted(List<ExtendConnection.ChannelEntry> batch, int[] rowsOut) {
+        ArrayList<ExtendConnection.ChannelEntry> added = new ArrayList<ExtendConnection.ChannelEntry>(batch.size());
+        IntIntMap seen = new IntIntMap(batch.size());
+        for (ExtendConnection.ChannelEntry entry : batch) {
+            if (!rowById.containsKey(entry.channelId) && !seen.containsKey(entry.channelId)) {
+                seen.put(entry.channelId, 0);
+                added.add(entry);
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+
+        Collections.sort(added, new Comparator<ExtendConnection.ChannelEntry>() {
+            @Override
+            public int compare(ExtendConnection.ChannelEntry lhs, ExtendConnection.ChannelEntry rhs) {
+                return compareKeys(lhs.number, lhs.channelId, rhs.number, rhs.channelId);
+            }
+        });
+
+        ensureCapacity(size + added.size());
+
+        // Merge from the back, so each existing row moves at most once
+        int oldRow = size - 1;
+        int newRow = size + added.size() - 1;
+        for (int i = added.size() - 1; i >= 0; newRow--) {
+            ExtendConnection.ChannelEntry entry = added.get(i);
+            if (oldRow >= 0 && compareKeys(numbers[oldRow], ids[oldRow], entry.number, entry.channelId) > 0) {
+                moveRow(oldRow--, newRow);
+            }
+            else {
+                setRow(newRow, entry.channelId, entry.name, entry.number, entry.type);
+                rowsOut[i--] = newRow;
+            }
+        }
+        size += added.size();
+
+        // Every row from the first insertion on may have moved
+        for (int row = rowsOut[0]; row < size; row++) {
+            rowById.put(ids[row], row);
+        }
+
+        return added.size();
+    }
+
+    private static int compareKeys(int lhsNumber, int lhsId, int rhsNumber, int rhsId) {
+        if (lhsNumber != rhsNumber) {
+            return lhsNumber < rhsNumber ? -1 : 1;
+        }
+        return lhsId < rhsId ? -1 : (lhsId == rhsId ? 0 : 1);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            capacity = Math.max(capacity, ids.length * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+            types = Arrays.copyOf(types, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+            numberOffsets = Arrays.copyOf(numberOffsets, capacity);
+            numberLengths = Arrays.copyOf(numberLengths, capacity);
+        }
+    }
+
+    // The text of a row stays where it is in the char arrays when the row moves
+    private void moveRow(int from, int to) {
+        ids[to] = ids[from];
+        numbers[to] = numbers[from];
+        types[to] = types[from];
+        nameOffsets[to] = nameOffsets[from];
+        nameLengths[to] = nameLengths[from];
+        numberOffsets[to] = numberOffsets[from];
+        numberLengths[to] = numberLengths[from];
+    }
+
+    private void setRow(int row, int channelId, String name, int number, int type) {
+        if (name == null) {
+            name = "";
+        }
+        if (namesLength + name.length() > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + name.length()));
+        }
+        name.getChars(0, name.length(), names, namesLength);
+
+        ids[row] = channelId;
+        numbers[row] = number;
+        types[row] = type;
+        nameOffsets[row] = namesLength;
+        nameLengths[row] = name.length();
+        namesLength += name.length();
+
+        numberOffsets[row] = numberTextLength;
+        appendNumberText(number);
+        numberLengths[row] = numberTextLength - numberOffsets[row];
+    }
+
+    // Formats the channel number once up front, so the list can show it
+    // without building a string every time a row is bound
+    private void appendNumberText(int number) {
+        // An int is at most 11 chars including the sign
+        if (numberTextLength + 11 > numberText.length) {
+            numberText = Arrays.copyOf(numberText, numberText.length * 2 + 11);
+        }
+
+        long value = number;
+        if (value < 0) {
+            numberText[numberTextLength++] = '-';
+            value = -value;
+        }
+
+        int start = numberTextLength;
+        do {
+            numberText[numberTextLength++] = (char) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        // The digits came out least significant first
+        for (int i = start, j = numberTextLength - 1; i < j; i++, j--) {
+            char c = numberText[i];
+            numberText[i] = numberText[j];
+            numberText[j] = c;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Returns the row of the given channel, or -1 if it isn't in the table
+    public int findRow(int channelId) {
+        return rowById.get(channelId, -1);
+    }
+
+    public int getChannelId(int row) {
+        return ids[row];
+    }
+
+    public int getNumber(int row) {
+        return numbers[row];
+    }
+
+    public int getType(int row) {
+        return types[row];
+    }
+
+    // The name of a row is getNameLength(row) chars of this array starting at
+    // getNameOffset(row). The array is replaced when the table grows.
+    public char[] getNameChars() {
+        return names;
+    }
+
+    public int getNameOffset(int row) {
+        return nameOffsets[row];
+    }
+
+    public int getNameLength(int row) {
+        return nameLengths[row];
+    }
+
+    // Same as the name columns, but for the channel number in decimal
+    public char[] getNumberChars() {
+        return numberText;
+    }
+
+    public int getNumberOffset(int row) {
+        return numberOffsets[row];
+    }
+
+    public int getNumberLength(int row) {
+        return numberLengths[row];
+    }
+
+    public String getName(int row) {
+        return new String(names, nameOffsets[row], nameLengths[row]);
+    }
+
+    public ExtendConnection.ChannelEntry getEntry(int row) {
+        return new ExtendConnection.ChannelEntry(ids[row], getName(row), numbers[row], types[row]);
+    }
+
+    public int[] getChannelIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    // Compares a row of this table with a row of another without materializing either
+    public boolean rowEquals(int row, ChannelTable other, int otherRow) {
+        if (ids[row] != other.ids[otherRow] || numbers[row] != other.numbers[otherRow] ||
+                types[row] != other.types[otherRow] || nameLengths[row] != other.nameLengths[otherRow]) {
+            return false;
+        }
+
+        int offset = nameOffsets[row];
+        int otherOffset = other.nameOffsets[otherRow];
+        for (int i = 0; i < nameLengths[row]; i++) {
+            if (names[offset + i] != other.names[otherOffset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
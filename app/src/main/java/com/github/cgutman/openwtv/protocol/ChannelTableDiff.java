@@ -0,0 +1,87 @@
+package com.github.cgutman.openwtv.protocol;
+
+// Works out how one channel table turns into another as runs of removed,
+// inserted and changed rows, so a list can update only the rows that
+// differ. Rows are matched by channel ID through the tables' indexes, so
+// this is a single pass over each table.
+public class ChannelTableDiff {
+    public interface Callback {
+        // Each position is valid given every change reported before it
+        void onRemoved(int position, int count);
+        void onInserted(int position, int count);
+        void onChanged(int position, int count);
+    }
+
+    private ChannelTableDiff() {}
+
+    // Reports how to turn oldTable into newTable. If the channels the two
+    // have in common are in a different order, nothing is reported and this
+    // returns false, since the whole list needs to be redrawn anyway.
+    public static boolean diff(ChannelTable oldTable, ChannelTable newTable, Callback callback) {
+        // The channels that are in both lists need to be in the same relative
+        // order for the changes to be expressed as removals, insertions and updates
+        int lastOldRow = -1;
+        for (int i = 0; i < newTable.size(); i++) {
+            int oldRow = oldTable.findRow(newTable.getChannelId(i));
+            if (oldRow >= 0) {
+                if (oldRow < lastOldRow) {
+                    return false;
+                }
+                lastOldRow = oldRow;
+            }
+        }
+
+        // Removals go back to front so earlier positions stay valid
+        int runEnd = -1;
+        for (int i = oldTable.size() - 1; i >= 0; i--) {
+            if (newTable.findRow(oldTable.getChannelId(i)) < 0) {
+                if (runEnd < 0) {
+                    runEnd = i;
+                }
+            }
+            else if (runEnd >= 0) {
+                callback.onRemoved(i + 1, runEnd - i);
+                runEnd = -1;
+            }
+        }
+        if (runEnd >= 0) {
+            callback.onRemoved(0, runEnd + 1);
+        }
+
+        // Now the positions of everything still in the list match the new list
+        // except for the insertions, which we report front to back
+        int insertStart = -1;
+        int changeStart = -1;
+        for (int i = 0; i < newTable.size(); i++) {
+            int oldRow = oldTable.findRow(newTable.getChannelId(i));
+
+            if (oldRow < 0) {
+                if (insertStart < 0) {
+                    insertStart = i;
+                }
+            }
+            else if (insertStart >= 0) {
+                callback.onInserted(insertStart, i - insertStart);
+                insertStart = -1;
+            }
+
+            if (oldRow >= 0 && !oldTable.rowEquals(oldRow, newTable, i)) {
+                if (changeStart < 0) {
+                    changeStart = i;
+                }
+            }
+            else if (changeStart >= 0) {
+                callback.onChanged(changeStart, i - changeStart);
+                changeStart = -1;
+            }
+        }
+        if (insertStart >= 0) {
+            callback.onInserted(insertStart, newTable.size() - insertStart);
+        }
+        if (changeStart >= 0) {
+            callback.onChanged(changeStart, newTable.size() - changeStart);
+        }
+
+        return true;
+    }
+}
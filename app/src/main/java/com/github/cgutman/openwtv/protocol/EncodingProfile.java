@@ -0,0 +1,44 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// A transcoding profile on the server and the bitrate to run it at
+public class EncodingProfile {
+    // The only profiles and bitrate we know the server to accept. We have no
+    // way of asking it for others.
+    public static final EncodingProfile SD_768 = new EncodingProfile("(new iPad) 4096kbps, 1024x768", 4096);
+    public static final EncodingProfile HD_720 = new EncodingProfile("(new iPad) 4096kbps, 1280x720", 4096);
+    public static final EncodingProfile HD_1080 = new EncodingProfile("(new iPad) 4096kbps, 1920x1080", 4096);
+
+    // The profiles adaptive playback chooses from, in increasing quality
+    // order. They share a nominal bitrate, so the rate each one really
+    // streams at is learned by the AbrController as it's played.
+    public static final List<EncodingProfile> LADDER = Collections.unmodifiableList(Arrays.asList(
+            SD_768, HD_720, HD_1080));
+
+    // What we used before we knew anything about the network
+    public static final int DEFAULT_LADDER_INDEX = 1;
+
+    public final String profileName;
+    public final int bitrateKbps;
+
+    public EncodingProfile(String profileName, int bitrateKbps) {
+        this.profileName = profileName;
+        this.bitrateKbps = bitrateKbps;
+    }
+
+    public static int[] getLadderBitrates() {
+        int[] bitrates = new int[LADDER.size()];
+        for (int i = 0; i < bitrates.length; i++) {
+            bitrates[i] = LADDER.get(i).bitrateKbps;
+        }
+        return bitrates;
+    }
+
+    @Override
+    public String toString() {
+        return profileName + " @ " + bitrateKbps + "kbps";
+    }
+}
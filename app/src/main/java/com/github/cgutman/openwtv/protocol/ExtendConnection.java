@@ -1,35 +1,80 @@
 package com.github.cgutman.openwtv.protocol;
 
-
-import android.util.Log;
+import com.github.cgutman.openwtv.hls.Playlist;
+import com.github.cgutman.openwtv.utils.Metrics;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.StringReader;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class ExtendConnection {
+    private final ExtendTransport transport;
     private final String baseUrl;
-    private final String sessionId;
-
-    private static final String TAG = "OWTV";
+    private final String password;
+    private volatile String sessionId;
+
+    // Settings we know the server has for our session, and the last value
+    // we asked for of each setting, which a new session is given again.
+    // Both are protected by the settingsSnapshot monitor.
+    private final HashMap<String, String> settingsSnapshot = new HashMap<String, String>();
+    private final LinkedHashMap<String, String> requestedSettings = new LinkedHashMap<String, String>();
+
+    private static volatile boolean verbose = false;
+
+    // Number of channels handed to a ChannelListListener at a time
+    private static final int CHANNEL_BATCH_SIZE = 50;
+
+    // How far into a logo response we look for the start of an rsp document
+    private static final int MAX_IMAGE_PEEK_BYTES = 256;
+
+    // Shared by requests that we fan out to the server concurrently
+    private static final ExecutorService requestExecutor = Executors.newFixedThreadPool(4, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new RequestThread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
-    private static final boolean verbose = true;
+    // Lets runConcurrently() tell that it's already running on the executor
+    private static class RequestThread extends Thread {
+        RequestThread(Runnable r) {
+            super(r, "Extend Request");
+        }
+    }
 
-    private ExtendConnection(String baseUrl, String sessionId) {
+    private ExtendConnection(ExtendTransport transport, String baseUrl, String password) {
+        this.transport = transport;
         this.baseUrl = baseUrl;
-        this.sessionId = sessionId;
+        this.password = password;
     }
 
     private static String buildBaseUrl(InetAddress address, int port) {
@@ -53,119 +98,244 @@ public class ExtendConnection {
         return baseUrl.toString();
     }
 
-    private static String getUrlToString(String url) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        StringBuilder strb = new StringBuilder();
+    public static void setVerboseLogging(boolean enabled) {
+        verbose = enabled;
+    }
+
+    private static InputStream openUrl(ExtendTransport transport, String url) throws IOException {
+        InputStream in = transport.get(url);
+
+        if (!verbose) {
+            // Hand the response stream straight to the parser
+            return in;
+        }
 
+        // Buffer the whole response so it can be logged and then parsed
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
         try {
-            Scanner s = new Scanner(conn.getInputStream());
-            try {
-                while (s.hasNext()) {
-                    strb.append(s.next());
-                    strb.append(' ');
-                }
-            } finally {
-                s.close();
+            byte[] buf = new byte[4096];
+            int ret;
+            while ((ret = in.read(buf)) != -1) {
+                body.write(buf, 0, ret);
             }
         } finally {
-            conn.disconnect();
+            in.close();
         }
 
-        if (verbose) {
-            Log.d(TAG, url + " -> " + strb.toString());
+        ProtocolLog.d(url + " -> " + body.toString("UTF-8"));
+
+        return new ByteArrayInputStream(body.toByteArray());
+    }
+
+    private static String[] requestFields(ExtendTransport transport, String url, String... tagnames) throws IOException {
+        InputStream in = openUrl(transport, url);
+        try {
+            return ResponseParser.parseFields(in, tagnames);
+        } finally {
+            in.close();
         }
+    }
 
-        return strb.toString();
+    private String buildServiceUrl(String serviceString, String sid) {
+        return baseUrl + "/services/service?method="+serviceString+"&sid="+sid;
     }
 
-    private static void verifyResponseStatus(XmlPullParser xpp) throws IOException {
-        String statusMsg = xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "stat");
-        if (!statusMsg.equals("ok")) {
-            throw new IOException("Request failed: "+statusMsg);
+    private void requestService(String serviceString) throws IOException {
+        // Parsing without any fields to collect will only verify the response status
+        requestServiceFields(serviceString);
+    }
+
+    private String[] requestServiceFields(String serviceString, String... tagnames) throws IOException {
+        String sid = sessionId;
+        try {
+            return requestFields(transport, buildServiceUrl(serviceString, sid), tagnames);
+        } catch (RequestFailedException e) {
+            if (!e.isSessionRejected()) {
+                throw e;
+            }
+
+            // Our session is gone, so log in again and retry once
+            relogin(sid);
+            return requestFields(transport, buildServiceUrl(serviceString, sessionId), tagnames);
         }
     }
 
-    private static String getXmlString(String data, String tagname) throws IOException {
+    final private static char[] hexArray = "0123456789abcdef".toCharArray();
+    static String bytesToHex(byte[] bytes) {
+        char[] hexChars = new char[bytes.length * 2];
+        for ( int j = 0; j < bytes.length; j++ ) {
+            int v = bytes[j] & 0xFF;
+            hexChars[j * 2] = hexArray[v >>> 4];
+            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    static String md5(String str) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        return bytesToHex(md.digest(str.getBytes()));
+    }
+
+    private static String buildMd5String(String password, String salt) throws NoSuchAlgorithmException {
+        return md5(':' + md5(password.toLowerCase()) + ':' + salt);
+    }
+
+    public void beginTranscode(int channelId) throws IOException {
+        long start = Metrics.begin();
+        requestService("channel.transcode.initiate&device=iPad&channel_id="+channelId);
+        Metrics.end(Metrics.TRANSCODE_INITIATE, start);
+    }
+
+    public LinkedList<ChannelGroup> requestChannelGroups() throws IOException {
+        String sid = sessionId;
         try {
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            XmlPullParser xpp = factory.newPullParser();
+            return parseChannelGroups(openUrl(transport, buildServiceUrl("channel.group.list", sid)));
+        } catch (RequestFailedException e) {
+            if (!e.isSessionRejected()) {
+                throw e;
+            }
+
+            relogin(sid);
+            return parseChannelGroups(openUrl(transport, buildServiceUrl("channel.group.list", sessionId)));
+        }
+    }
 
-            xpp.setInput(new StringReader(data));
+    private static LinkedList<ChannelGroup> parseChannelGroups(InputStream in) throws IOException {
+        try {
+            XmlPullParser xpp = ResponseParser.newParser(in);
             int eventType = xpp.getEventType();
+            LinkedList<ChannelGroup> groupList = new LinkedList<ChannelGroup>();
             Stack<String> currentTag = new Stack<String>();
 
+            int groupId = -1;
+            String groupName = null;
+
             while (eventType != XmlPullParser.END_DOCUMENT) {
                 switch (eventType) {
                     case (XmlPullParser.START_TAG):
                         if (xpp.getName().equals("rsp")) {
-                            verifyResponseStatus(xpp);
+                            ResponseParser.verifyResponseStatus(xpp);
                         }
                         currentTag.push(xpp.getName());
                         break;
                     case (XmlPullParser.END_TAG):
-                        currentTag.pop();
+                        if (currentTag.pop().equals("group")) {
+                            groupList.add(new ChannelGroup(groupId, groupName));
+                            groupId = -1;
+                            groupName = null;
+                        }
                         break;
                     case (XmlPullParser.TEXT):
-                        if (currentTag.peek().equals(tagname)) {
-                            return xpp.getText();
+                        if (currentTag.peek().equals("id")) {
+                            try {
+                                groupId = Integer.parseInt(xpp.getText().trim());
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Group list has invalid ID: "+xpp.getText());
+                            }
+                        } else if (currentTag.peek().equals("name")) {
+                            groupName = xpp.getText().trim();
                         }
                         break;
                 }
                 eventType = xpp.next();
             }
+
+            return groupList;
         } catch (XmlPullParserException e) {
-            // Encapsulate the XMLPPE into an IOException
             throw new IOException(e);
+        } finally {
+            in.close();
         }
-
-        return null;
     }
 
-    private static void throwOnResponseFail(String resp) throws IOException {
-        // This will cause the response status to be verified
-        getXmlString(resp, "foo");
+    public List<ChannelEntry> requestChannelList() throws IOException {
+        return requestChannelList(null);
     }
 
-    private String requestService(String serviceString) throws IOException {
-        String resp = getUrlToString(baseUrl + "/services/service?method="+serviceString+"&sid="+sessionId);
-        throwOnResponseFail(resp);
-        return resp;
-    }
+    // Fetches the channels of every group concurrently and merges them into a
+    // single lineup sorted by channel number with duplicates removed. If a
+    // listener is given, it also gets each channel once, in parse order, as
+    // soon as it has been read from the server.
+    public List<ChannelEntry> requestChannelList(ChannelListListener listener) throws IOException {
+        List<ChannelGroup> groups;
+        try {
+            groups = requestChannelGroups();
+        } catch (RequestFailedException e) {
+            // Servers that can't enumerate groups only have the default one
+            ProtocolLog.i("Unable to enumerate channel groups: "+e.getMessage());
+            groups = null;
+        } catch (FileNotFoundException e) {
+            ProtocolLog.i("Unable to enumerate channel groups: "+e.getMessage());
+            groups = null;
+        }
 
-    final private static char[] hexArray = "0123456789abcdef".toCharArray();
-    private static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for ( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+        if (groups == null || groups.isEmpty()) {
+            groups = new LinkedList<ChannelGroup>();
+            groups.add(new ChannelGroup(0, null));
         }
-        return new String(hexChars);
-    }
 
-    private static String md5(String str) throws NoSuchAlgorithmException {
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        return bytesToHex(md.digest(str.getBytes()));
-    }
+        final ChannelListListener groupListener = listener != null ? new DedupingListener(listener) : null;
 
-    private static String buildMd5String(String password, String salt) throws NoSuchAlgorithmException {
-        return md5(':' + md5(password.toLowerCase()) + ':' + salt);
-    }
+        ArrayList<Callable<LinkedList<ChannelEntry>>> tasks = new ArrayList<Callable<LinkedList<ChannelEntry>>>();
+        for (final ChannelGroup group : groups) {
+            tasks.add(new Callable<LinkedList<ChannelEntry>>() {
+                @Override
+                public LinkedList<ChannelEntry> call() throws IOException {
+                    return requestChannelListForGroup(group.groupId, groupListener);
+                }
+            });
+        }
 
-    public void beginTranscode(int channelId) throws IOException {
-        requestService("channel.transcode.initiate&device=iPad&channel_id="+channelId);
+        // A channel can be in more than one group, but we only want it once
+        LinkedHashMap<Integer, ChannelEntry> merged = new LinkedHashMap<Integer, ChannelEntry>();
+        for (LinkedList<ChannelEntry> groupChannels : runConcurrently(tasks)) {
+            for (ChannelEntry entry : groupChannels) {
+                if (!merged.containsKey(entry.channelId)) {
+                    merged.put(entry.channelId, entry);
+                }
+            }
+        }
+
+        ArrayList<ChannelEntry> lineup = new ArrayList<ChannelEntry>(merged.values());
+        Collections.sort(lineup, new Comparator<ChannelEntry>() {
+            @Override
+            public int compare(ChannelEntry lhs, ChannelEntry rhs) {
+                if (lhs.number != rhs.number) {
+                    return lhs.number < rhs.number ? -1 : 1;
+                }
+                return lhs.channelId < rhs.channelId ? -1 : (lhs.channelId == rhs.channelId ? 0 : 1);
+            }
+        });
+
+        return lineup;
     }
 
     public LinkedList<ChannelEntry> requestChannelListForGroup(int groupId) throws IOException {
+        return requestChannelListForGroup(groupId, null);
+    }
+
+    public LinkedList<ChannelEntry> requestChannelListForGroup(int groupId, ChannelListListener listener) throws IOException {
+        String sid = sessionId;
         try {
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            XmlPullParser xpp = factory.newPullParser();
+            // The session is checked before any channels are parsed, so a retry
+            // can't deliver the same channels to the listener twice
+            return parseChannelList(openUrl(transport, buildServiceUrl("channel.list&group_id="+groupId, sid)), listener);
+        } catch (RequestFailedException e) {
+            if (!e.isSessionRejected()) {
+                throw e;
+            }
+
+            relogin(sid);
+            return parseChannelList(openUrl(transport, buildServiceUrl("channel.list&group_id="+groupId, sessionId)), listener);
+        }
+    }
 
-            xpp.setInput(new StringReader(requestService("channel.list&group_id="+groupId)));
+    private static LinkedList<ChannelEntry> parseChannelList(InputStream in, ChannelListListener listener) throws IOException {
+        try {
+            XmlPullParser xpp = ResponseParser.newParser(in);
             int eventType = xpp.getEventType();
             LinkedList<ChannelEntry> channelList = new LinkedList<ChannelEntry>();
+            ArrayList<ChannelEntry> batch = new ArrayList<ChannelEntry>(CHANNEL_BATCH_SIZE);
             Stack<String> currentTag = new Stack<String>();
 
             int channelId = -1;
@@ -176,11 +346,23 @@ public class ExtendConnection {
             while (eventType != XmlPullParser.END_DOCUMENT) {
                 switch (eventType) {
                     case (XmlPullParser.START_TAG):
+                        if (xpp.getName().equals("rsp")) {
+                            ResponseParser.verifyResponseStatus(xpp);
+                        }
                         currentTag.push(xpp.getName());
                         break;
                     case (XmlPullParser.END_TAG):
                         if (currentTag.pop().equals("channel")) {
-                            channelList.add(new ChannelEntry(channelId, channelName, channelNumber, channelType));
+                            ChannelEntry entry = new ChannelEntry(channelId, channelName, channelNumber, channelType);
+                            channelList.add(entry);
+
+                            if (listener != null) {
+                                batch.add(entry);
+                                if (batch.size() >= CHANNEL_BATCH_SIZE) {
+                                    listener.onChannelsParsed(batch);
+                                    batch = new ArrayList<ChannelEntry>(CHANNEL_BATCH_SIZE);
+                                }
+                            }
                         }
                         break;
                     case (XmlPullParser.TEXT):
@@ -211,44 +393,252 @@ public class ExtendConnection {
                 eventType = xpp.next();
             }
 
+            if (listener != null && !batch.isEmpty()) {
+                listener.onChannelsParsed(batch);
+            }
+
             return channelList;
         } catch (XmlPullParserException e) {
             throw new IOException(e);
+        } finally {
+            in.close();
         }
     }
 
-    private void setBitrate(int bitrate) throws IOException {
-        requestService("setting.set&device=iPad&local_bitrate="+bitrate);
-        requestService("setting.set&device=iPad&remote_bitrate="+bitrate);
+    // Fetches the guide entries of every channel for programs that overlap
+    // the given window. Times are in milliseconds since the epoch, but the
+    // server works in whole seconds.
+    public List<ProgramEntry> requestProgramList(long windowStart, long windowEnd) throws IOException {
+        String service = "program.list&start="+(windowStart / 1000)+"&end="+((windowEnd + 999) / 1000);
+
+        String sid = sessionId;
+        try {
+            return parseProgramList(openUrl(transport, buildServiceUrl(service, sid)));
+        } catch (RequestFailedException e) {
+            if (!e.isSessionRejected()) {
+                throw e;
+            }
+
+            relogin(sid);
+            return parseProgramList(openUrl(transport, buildServiceUrl(service, sessionId)));
+        }
     }
 
-    private void setProfile(String profileString) throws IOException {
-        profileString = profileString.replace(" ", "%20");
-        requestService("setting.set&device=iPad&local_profile="+profileString);
-        requestService("setting.set&device=iPad&remote_profile="+profileString);
+    private static List<ProgramEntry> parseProgramList(InputStream in) throws IOException {
+        try {
+            XmlPullParser xpp = ResponseParser.newParser(in);
+            int eventType = xpp.getEventType();
+            ArrayList<ProgramEntry> programs = new ArrayList<ProgramEntry>();
+            Stack<String> currentTag = new Stack<String>();
+
+            int channelId = -1;
+            long startTime = -1;
+            long endTime = -1;
+            String title = null;
+
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                switch (eventType) {
+                    case (XmlPullParser.START_TAG):
+                        if (xpp.getName().equals("rsp")) {
+                            ResponseParser.verifyResponseStatus(xpp);
+                        }
+                        else if (xpp.getName().equals("program")) {
+                            channelId = -1;
+                            startTime = -1;
+                            endTime = -1;
+                            title = null;
+                        }
+                        currentTag.push(xpp.getName());
+                        break;
+                    case (XmlPullParser.END_TAG):
+                        if (currentTag.pop().equals("program")) {
+                            if (channelId < 0 || startTime < 0 || endTime <= startTime) {
+                                throw new IOException("Program list has an incomplete program");
+                            }
+                            programs.add(new ProgramEntry(channelId, startTime, endTime, title));
+                        }
+                        break;
+                    case (XmlPullParser.TEXT):
+                        if (currentTag.peek().equals("channel_id")) {
+                            try {
+                                channelId = Integer.parseInt(xpp.getText().trim());
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Program list has invalid channel ID: "+xpp.getText());
+                            }
+                        } else if (currentTag.peek().equals("start")) {
+                            try {
+                                startTime = Long.parseLong(xpp.getText().trim()) * 1000;
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Program list has invalid start: "+xpp.getText());
+                            }
+                        } else if (currentTag.peek().equals("end")) {
+                            try {
+                                endTime = Long.parseLong(xpp.getText().trim()) * 1000;
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Program list has invalid end: "+xpp.getText());
+                            }
+                        } else if (currentTag.peek().equals("title")) {
+                            title = xpp.getText().trim();
+                        }
+                        break;
+                }
+                eventType = xpp.next();
+            }
+
+            return programs;
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Sends the given settings to the server, skipping any that the server
+    // already has. The remaining setting.set requests are issued concurrently
+    // rather than one blocking round trip after another.
+    public void applySettings(Map<String, String> settings) throws IOException {
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> values = new ArrayList<String>();
+
+        synchronized (settingsSnapshot) {
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                requestedSettings.put(setting.getKey(), setting.getValue());
+                if (!setting.getValue().equals(settingsSnapshot.get(setting.getKey()))) {
+                    names.add(setting.getKey());
+                    values.add(setting.getValue());
+                }
+            }
+        }
+
+        if (names.isEmpty()) {
+            // Nothing changed since the last time
+            return;
+        }
+
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < names.size(); i++) {
+            final String name = names.get(i);
+            final String value = values.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    setSetting(name, value);
+                    return null;
+                }
+            });
+        }
+
+        runConcurrently(tasks);
+    }
+
+    // Runs the tasks in parallel and returns their results in order. The first
+    // task runs on the calling thread while the rest are in flight on the
+    // request executor. If any task fails, the first failure is thrown once
+    // all of them have finished.
+    //
+    // Called from a task that is itself on the executor, this runs every task
+    // on the calling thread instead. A task waiting for the executor while
+    // holding one of its threads could wait forever once the others are busy
+    // doing the same.
+    private static <T> List<T> runConcurrently(List<Callable<T>> tasks) throws IOException {
+        int inline = Thread.currentThread() instanceof RequestThread ? tasks.size() : 1;
+
+        ArrayList<Future<T>> pending = new ArrayList<Future<T>>();
+        for (int i = inline; i < tasks.size(); i++) {
+            // Cancelling the caller's request should stop these too
+            pending.add(requestExecutor.submit(AsyncRequest.inheritCurrent(tasks.get(i))));
+        }
+
+        ArrayList<T> results = new ArrayList<T>(tasks.size());
+        IOException failure = null;
+        for (int i = 0; i < inline; i++) {
+            try {
+                results.add(tasks.get(i).call());
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                results.add(null);
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = new IOException(e);
+                }
+                results.add(null);
+            }
+        }
+
+        for (Future<T> future : pending) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() : new IOException(e.getCause());
+                }
+                results.add(null);
+            } catch (InterruptedException e) {
+                for (Future<T> f : pending) {
+                    f.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for requests");
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        return results;
+    }
+
+    private static String buildSettingService(String name, String value) {
+        return "setting.set&device=iPad&"+name+"="+value.replace(" ", "%20");
+    }
+
+    private void setSetting(String name, String value) throws IOException {
+        long start = Metrics.begin();
+        requestService(buildSettingService(name, value));
+        Metrics.end(Metrics.SETTING_SET, start);
+
+        synchronized (settingsSnapshot) {
+            settingsSnapshot.put(name, value);
+        }
+    }
+
+    // Sets the profile used for transcodes started after this. Settings that
+    // are already in place aren't sent again.
+    public void setEncoding(EncodingProfile profile) throws IOException {
+        String bitrate = Integer.toString(profile.bitrateKbps);
+
+        LinkedHashMap<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("local_profile", profile.profileName);
+        settings.put("remote_profile", profile.profileName);
+        settings.put("local_bitrate", bitrate);
+        settings.put("remote_bitrate", bitrate);
+        applySettings(settings);
     }
 
     public void setResolution1280x720() throws IOException {
-        setProfile("(new iPad) 4096kbps, 1280x720");
-        setBitrate(4096);
+        setEncoding(EncodingProfile.HD_720);
     }
 
     public void setResolution1920x1080() throws IOException {
-        setProfile("(new iPad) 4096kbps, 1920x1080");
-        setBitrate(4096);
+        setEncoding(EncodingProfile.HD_1080);
     }
 
     public void setResolution1024x768() throws IOException {
-        setProfile("(new iPad) 4096kbps, 1024x768");
-        setBitrate(4096);
+        setEncoding(EncodingProfile.SD_768);
     }
 
     public TranscodeStatus requestTranscodeStatus() throws IOException {
-        String resp = requestService("channel.transcode.status");
+        long start = Metrics.begin();
+        String[] fields = requestServiceFields("channel.transcode.status", "status", "final", "percentage");
+        Metrics.end(Metrics.TRANSCODE_STATUS, start);
 
-        String status = getXmlString(resp, "status");
-        String finished = getXmlString(resp, "final");
-        String percentage = getXmlString(resp, "percentage");
+        String status = fields[0];
+        String finished = fields[1];
+        String percentage = fields[2];
 
         if (status == null) {
             throw new IOException("Missing status in channel.transcode.status response");
@@ -270,37 +660,187 @@ public class ExtendConnection {
         return new TranscodeStatus(status, finished.toLowerCase().equals("true"), percentageInt);
     }
 
+    // Asynchronous versions of the requests above. They run on the shared
+    // AsyncRequest pool, and cancelling the returned request drops the
+    // connection the response is being read from.
+    public AsyncRequest<List<ChannelEntry>> requestChannelListAsync(final ChannelListListener listener,
+                                                                   AsyncRequest.Callback<List<ChannelEntry>> callback) {
+        return AsyncRequest.execute(new Callable<List<ChannelEntry>>() {
+            @Override
+            public List<ChannelEntry> call() throws IOException {
+                return requestChannelList(listener);
+            }
+        }, callback);
+    }
+
+    public AsyncRequest<TranscodeStatus> requestTranscodeStatusAsync(AsyncRequest.Callback<TranscodeStatus> callback) {
+        return AsyncRequest.execute(new Callable<TranscodeStatus>() {
+            @Override
+            public TranscodeStatus call() throws IOException {
+                return requestTranscodeStatus();
+            }
+        }, callback);
+    }
+
+    private Playlist fetchPlaylist(String url) throws IOException {
+        InputStream in = transport.get(url);
+        try {
+            return Playlist.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns true once the server has at least one HLS segment ready for the
+    // channel, which is enough for the player to start even if the transcode
+    // hasn't finished its initial buffering yet
+    public boolean isFirstSegmentAvailable(int channelId) throws IOException {
+        String url = getPlaybackUrl(channelId);
+        Playlist playlist = fetchPlaylist(url);
+
+        // Look at the first variant if this is a master playlist
+        if (playlist.isMasterPlaylist()) {
+            playlist = fetchPlaylist(Playlist.resolveUri(url, playlist.variantUris.get(0)));
+        }
+
+        return !playlist.segmentUris.isEmpty();
+    }
+
+    // Opens the channel's logo image. The server answers with a 404, which
+    // becomes a FileNotFoundException, for channels that don't have one.
+    // Errors come back as an rsp document in place of the image, so that's
+    // checked for before the stream is returned, and a rejected session is
+    // retried once like any other request.
+    public InputStream openChannelLogo(int channelId) throws IOException {
+        String sid = sessionId;
+        try {
+            return openImage(buildServiceUrl("channel.icon&channel_id="+channelId, sid));
+        } catch (RequestFailedException e) {
+            if (!e.isSessionRejected()) {
+                throw e;
+            }
+
+            relogin(sid);
+            return openImage(buildServiceUrl("channel.icon&channel_id="+channelId, sessionId));
+        }
+    }
+
+    private InputStream openImage(String url) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(transport.get(url));
+        boolean isImage = false;
+        try {
+            // No image format we can decode starts with '<', but a response
+            // document does once any leading whitespace is skipped
+            in.mark(MAX_IMAGE_PEEK_BYTES);
+            int c;
+            int peeked = 0;
+            do {
+                c = in.read();
+            } while (++peeked < MAX_IMAGE_PEEK_BYTES && (c == ' ' || c == '\t' || c == '\r' || c == '\n'));
+            in.reset();
+
+            if (c == '<') {
+                // Throws for a failure status
+                ResponseParser.parseFields(in);
+                throw new FileNotFoundException("Server sent no image for "+url);
+            }
+
+            isImage = true;
+            return in;
+        } finally {
+            if (!isImage) {
+                in.close();
+            }
+        }
+    }
+
+    public ExtendTransport getTransport() {
+        return transport;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
     public String getPlaybackUrl(int channelId) {
         return baseUrl + "/service/services/channelasync.m3u8?sid="+sessionId+"&channel_id="+channelId;
     }
 
     public static ExtendConnection establishConnection(InetAddress address, int port, String password) throws IOException {
-        String baseUrl = buildBaseUrl(address, port);
+        return establishConnection(KeepAliveTransport.getInstance(), address, port, password);
+    }
+
+    public static ExtendConnection establishConnection(ExtendTransport transport, InetAddress address, int port, String password) throws IOException {
+        ExtendConnection conn = new ExtendConnection(transport, buildBaseUrl(address, port), password);
+        conn.login();
+        return conn;
+    }
+
+    private void login() throws IOException {
+        long start = Metrics.begin();
 
         // Do the initial init request to get the session ID and salt
-        String initiateResp = getUrlToString(baseUrl + "/services/service?method=session.initiate&ver=1.0&device=iPad");
-        String sessionId = getXmlString(initiateResp, "sid");
-        String salt = getXmlString(initiateResp, "salt");
+        String[] fields = requestFields(transport, baseUrl + "/services/service?method=session.initiate&ver=1.0&device=iPad",
+                "sid", "salt");
+        String newSessionId = fields[0];
+        String salt = fields[1];
 
-        if (sessionId == null) {
+        if (newSessionId == null) {
             throw new IOException("Missing session ID in session.initiate response");
         }
         if (salt == null) {
             throw new IOException("Missing salt in session.initiate response");
         }
 
-        ExtendConnection conn = new ExtendConnection(baseUrl, sessionId);
-
         // Complete the login process using the given password and salt
         try {
-            conn.requestService("session.login&md5=" + buildMd5String(password, salt));
+            requestFields(transport, buildServiceUrl("session.login&md5=" + buildMd5String(password, salt), newSessionId));
         } catch (NoSuchAlgorithmException e) {
             // MD5 should always be available
             e.printStackTrace();
             throw new RuntimeException(e);
         }
 
-        return conn;
+        sessionId = newSessionId;
+        Metrics.end(Metrics.LOGIN, start);
+    }
+
+    private synchronized void relogin(String rejectedSessionId) throws IOException {
+        // Another thread may have already replaced the rejected session
+        if (!rejectedSessionId.equals(sessionId)) {
+            return;
+        }
+
+        ProtocolLog.i("Session "+rejectedSessionId+" was rejected by "+baseUrl+"; logging in again");
+        login();
+
+        // We can't assume the new session inherited anything we set
+        final LinkedHashMap<String, String> settings;
+        synchronized (settingsSnapshot) {
+            settingsSnapshot.clear();
+            settings = new LinkedHashMap<String, String>(requestedSettings);
+        }
+
+        // Set them again before the rejected request is retried, or a
+        // transcode would start at the server's defaults. These don't go
+        // through requestService() so a server that rejects the new session
+        // too can't send us back here.
+        //
+        // They're sent one at a time on this thread. Relogins are often run
+        // from tasks on the request executor, and the other tasks that were
+        // rejected wait for this lock, so settings queued on the executor
+        // might never get a thread.
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            String service = buildSettingService(setting.getKey(), setting.getValue());
+            requestFields(transport, buildServiceUrl(service, sessionId));
+            synchronized (settingsSnapshot) {
+                settingsSnapshot.put(setting.getKey(), setting.getValue());
+            }
+        }
+    }
+
+    public boolean usesPassword(String password) {
+        return this.password.equals(password);
     }
 
     public static class TranscodeStatus {
@@ -315,6 +855,49 @@ public class ExtendConnection {
         }
     }
 
+    public interface ChannelListListener {
+        // Called with each batch of channels as it is parsed. When several
+        // groups are loaded at once, this may be called from multiple threads.
+        void onChannelsParsed(List<ChannelEntry> batch);
+    }
+
+    // Passes each channel on only the first time any group delivers it
+    private static class DedupingListener implements ChannelListListener {
+        private final ChannelListListener listener;
+        private final HashSet<Integer> delivered = new HashSet<Integer>();
+
+        DedupingListener(ChannelListListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onChannelsParsed(List<ChannelEntry> batch) {
+            ArrayList<ChannelEntry> fresh = new ArrayList<ChannelEntry>(batch.size());
+
+            synchronized (delivered) {
+                for (ChannelEntry entry : batch) {
+                    if (delivered.add(entry.channelId)) {
+                        fresh.add(entry);
+                    }
+                }
+            }
+
+            if (!fresh.isEmpty()) {
+                listener.onChannelsParsed(fresh);
+            }
+        }
+    }
+
+    public static class ChannelGroup {
+        public final int groupId;
+        public final String name;
+
+        public ChannelGroup(int groupId, String name) {
+            this.groupId = groupId;
+            this.name = name;
+        }
+    }
+
     public static class ChannelEntry {
         public final int channelId;
         public final String name;
@@ -327,5 +910,42 @@ public class ExtendConnection {
             this.number = number;
             this.type = type;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ChannelEntry)) {
+                return false;
+            }
+
+            ChannelEntry other = (ChannelEntry) o;
+            return channelId == other.channelId && number == other.number && type == other.type &&
+                    (name == null ? other.name == null : name.equals(other.name));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = channelId;
+            result = 31 * result + (name != null ? name.hashCode() : 0);
+            result = 31 * result + number;
+            result = 31 * result + type;
+            return result;
+        }
+    }
+
+    public static class ProgramEntry {
+        public final int channelId;
+        public final long startTime;
+        public final long endTime;
+        public final String title;
+
+        public ProgramEntry(int channelId, long startTime, long endTime, String title) {
+            this.channelId = channelId;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.title = title;
+        }
     }
 }
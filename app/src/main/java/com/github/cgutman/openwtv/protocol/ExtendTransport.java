@@ -0,0 +1,11 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface ExtendTransport {
+    // Performs a GET request for the given URL and returns the response body.
+    // The caller must close the returned stream, which allows the transport to
+    // reuse the underlying connection for later requests.
+    InputStream get(String url) throws IOException;
+}
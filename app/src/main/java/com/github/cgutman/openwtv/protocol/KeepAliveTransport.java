@@ -0,0 +1,116 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+// Transport that leaves connections open after each request so that the
+// platform's HTTP connection pool can reuse the socket for the next one.
+public class KeepAliveTransport implements ExtendTransport {
+    // If there's more than this much left unread when the stream is closed,
+    // it's cheaper to drop the connection than to drain it.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    // A server that stops answering shouldn't hang a request forever
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 15000;
+
+    private static final KeepAliveTransport instance = new KeepAliveTransport();
+
+    public static KeepAliveTransport getInstance() {
+        return instance;
+    }
+
+    @Override
+    public InputStream get(String url) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+
+        // Cancelling the request we're part of drops the connection, which
+        // unblocks anything waiting on it
+        Closeable canceller = new Closeable() {
+            @Override
+            public void close() {
+                conn.disconnect();
+            }
+        };
+        AsyncRequest<?> request = AsyncRequest.attachConnection(canceller);
+
+        try {
+            return new ResponseStream(conn, conn.getInputStream(), request, canceller);
+        } catch (IOException e) {
+            // The error body must be consumed too or the connection can't be reused
+            InputStream err = conn.getErrorStream();
+            if (err != null) {
+                new ResponseStream(conn, err, request, canceller).close();
+            }
+            else {
+                conn.disconnect();
+                if (request != null) {
+                    request.detachConnection(canceller);
+                }
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            // HttpURLConnection can trip over a disconnect() from another
+            // thread while it's reading the response headers
+            if (request != null && request.isCancelled()) {
+                request.detachConnection(canceller);
+                throw new InterruptedIOException("Request was cancelled");
+            }
+            throw e;
+        }
+    }
+
+    private static class ResponseStream extends FilterInputStream {
+        private final HttpURLConnection conn;
+        private final AsyncRequest<?> request;
+        private final Closeable canceller;
+        private boolean closed;
+
+        ResponseStream(HttpURLConnection conn, InputStream in, AsyncRequest<?> request, Closeable canceller) {
+            super(in);
+            this.conn = conn;
+            this.request = request;
+            this.canceller = canceller;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                // The connection only goes back into the pool once the
+                // response body has been read to the end
+                byte[] buf = new byte[4096];
+                int drained = 0;
+                int ret;
+                while ((ret = in.read(buf)) != -1) {
+                    drained += ret;
+                    if (drained > MAX_DRAIN_BYTES) {
+                        conn.disconnect();
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // A broken connection will not be reused anyway
+                conn.disconnect();
+            } finally {
+                // Closing the stream (instead of disconnecting) releases the
+                // socket back to the keep-alive pool
+                if (request != null) {
+                    request.detachConnection(canceller);
+                }
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.utils.Metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Transport that counts the requests and response bytes that pass through
+// another one, and records how long each request takes to start responding
+public class MeteredTransport implements ExtendTransport {
+    private final ExtendTransport transport;
+
+    public MeteredTransport(ExtendTransport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public InputStream get(String url) throws IOException {
+        Metrics.count(Metrics.REQUESTS, 1);
+
+        long start = Metrics.begin();
+        InputStream in;
+        try {
+            in = transport.get(url);
+        } catch (IOException e) {
+            Metrics.count(Metrics.REQUEST_ERRORS, 1);
+            throw e;
+        }
+        Metrics.end(Metrics.REQUEST, start);
+
+        return new CountingStream(in);
+    }
+
+    private static class CountingStream extends FilterInputStream {
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ret = super.read();
+            if (ret != -1) {
+                Metrics.count(Metrics.BYTES_READ, 1);
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int ret = super.read(b, off, len);
+            if (ret > 0) {
+                Metrics.count(Metrics.BYTES_READ, ret);
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.utils.IntIntMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// The program guide of one server, indexed for "what's on now and next"
+// lookups while the channel list is drawn. Each channel has its own arrays of
+// programs sorted by start time, so a lookup is a binary search and doesn't
+// allocate.
+//
+// The guide covers a window from the present to a few hours ahead. Refreshing
+// mostly asks the server for the part of the window that we don't have yet as
+// time moves on, and programs that have ended are dropped as it does. Every
+// so often the next couple of hours are fetched again as well, so schedule
+// changes there are picked up. Changes further out can take until then to
+// show.
+public class ProgramGuide {
+    // How far ahead of now the guide covers
+    private static final long WINDOW_MS = 6 * 60 * 60 * 1000;
+
+    // Don't go to the server for less than this much new guide data
+    private static final long MIN_REFRESH_MS = 30 * 60 * 1000;
+
+    // How much of what we hold is fetched again to pick up schedule changes,
+    // and how often
+    private static final long RECHECK_MS = 2 * 60 * 60 * 1000;
+    private static final long RECHECK_INTERVAL_MS = 30 * 60 * 1000;
+
+    private static class Schedule {
+        final long[] starts;
+        final long[] ends;
+        final String[] titles;
+
+        Schedule(int count) {
+            starts = new long[count];
+            ends = new long[count];
+            titles = new String[count];
+        }
+
+        int size() {
+            return starts.length;
+        }
+
+        // Index of the last program starting at or before the time, or -1
+        int floor(long time) {
+            int low = 0;
+            int high = starts.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= time) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+    }
+
+    // The following are protected by the ProgramGuide monitor. Schedules are
+    // never modified once they're in the index; a merge replaces them.
+    private final IntIntMap scheduleIndex = new IntIntMap(256);
+    private final ArrayList<Schedule> schedules = new ArrayList<Schedule>();
+    private long coveredUntil;
+    private long recheckedAt;
+
+    // Returns the title of the program on the channel at the given time, or
+    // null if we don't know of one
+    public synchronized String getNowTitle(int channelId, long time) {
+        Schedule schedule = getSchedule(channelId);
+        if (schedule == null) {
+            return null;
+        }
+
+        int i = schedule.floor(time);
+        return i >= 0 && schedule.ends[i] > time ? schedule.titles[i] : null;
+    }
+
+    // Returns the title of the first program on the channel that starts after
+    // the given time, or null if we don't know of one
+    public synchronized String getNextTitle(int channelId, long time) {
+        Schedule schedule = getSchedule(channelId);
+        if (schedule == null) {
+            return null;
+        }
+
+        int i = schedule.floor(time) + 1;
+        return i < schedule.size() ? schedule.titles[i] : null;
+    }
+
+    private Schedule getSchedule(int channelId) {
+        int index = scheduleIndex.get(channelId, -1);
+        return index >= 0 ? schedules.get(index) : null;
+    }
+
+    // Fetches whatever part of the window we don't have yet, and the start of
+    // the window again if it's been a while. Returns true if the guide changed.
+    public boolean refresh(ExtendConnection connection, long now) throws IOException {
+        long tailStart;
+        long windowEnd = now + WINDOW_MS;
+        boolean recheck;
+
+        synchronized (this) {
+            tailStart = Math.max(now, coveredUntil);
+            recheck = now - recheckedAt >= RECHECK_INTERVAL_MS;
+        }
+
+        boolean fetchTail = windowEnd - tailStart >= MIN_REFRESH_MS;
+        if (fetchTail) {
+            merge(tailStart, windowEnd, connection.requestProgramList(tailStart, windowEnd), now);
+        }
+
+        // If the tail started at now, it already covered this
+        if (recheck && tailStart > now) {
+            long recheckEnd = Math.min(now + RECHECK_MS, tailStart);
+            merge(now, recheckEnd, connection.requestProgramList(now, recheckEnd), now);
+        }
+        if (recheck) {
+            synchronized (this) {
+                recheckedAt = now;
+            }
+        }
+
+        return fetchTail || recheck;
+    }
+
+    // Replaces what we have for the window with the programs the server sent
+    // for it, and drops programs that ended before now
+    synchronized void merge(long windowStart, long windowEnd, List<ExtendConnection.ProgramEntry> programs, long now) {
+        // Group the new programs by channel, in start order
+        ArrayList<ExtendConnection.ProgramEntry> sorted = new ArrayList<ExtendConnection.ProgramEntry>(programs);
+        Collections.sort(sorted, new Comparator<ExtendConnection.ProgramEntry>() {
+            @Override
+            public int compare(ExtendConnection.ProgramEntry lhs, ExtendConnection.ProgramEntry rhs) {
+                if (lhs.channelId != rhs.channelId) {
+                    return lhs.channelId < rhs.channelId ? -1 : 1;
+                }
+                return lhs.startTime < rhs.startTime ? -1 : (lhs.startTime == rhs.startTime ? 0 : 1);
+            }
+        });
+
+        // Channels the server didn't mention have nothing in the window
+        boolean[] touched = new boolean[schedules.size()];
+
+        int i = 0;
+        while (i < sorted.size()) {
+            int channelId = sorted.get(i).channelId;
+            int end = i;
+            while (end < sorted.size() && sorted.get(end).channelId == channelId) {
+                end++;
+            }
+
+            int index = scheduleIndex.get(channelId, -1);
+            Schedule merged = mergeSchedule(index >= 0 ? schedules.get(index) : null,
+                    windowStart, windowEnd, sorted.subList(i, end), now);
+            if (index >= 0) {
+                schedules.set(index, merged);
+                touched[index] = true;
+            }
+            else {
+                scheduleIndex.put(channelId, schedules.size());
+                schedules.add(merged);
+            }
+
+            i = end;
+        }
+
+        List<ExtendConnection.ProgramEntry> none = Collections.emptyList();
+        for (int index = 0; index < touched.length; index++) {
+            if (!touched[index]) {
+                schedules.set(index, mergeSchedule(schedules.get(index), windowStart, windowEnd, none, now));
+            }
+        }
+
+        coveredUntil = Math.max(coveredUntil, windowEnd);
+    }
+
+    // Builds a channel's new schedule from the old programs that fall outside
+    // the replaced range and the new ones, which are sorted by start time
+    private static Schedule mergeSchedule(Schedule old, long windowStart, long windowEnd,
+                                          List<ExtendConnection.ProgramEntry> programs, long now) {
+        // The new programs can stick out of the window, and replace whatever
+        // they overlap there as well
+        long replaceStart = windowStart;
+        long replaceEnd = windowEnd;
+        for (ExtendConnection.ProgramEntry program : programs) {
+            replaceStart = Math.min(replaceStart, program.startTime);
+            replaceEnd = Math.max(replaceEnd, program.endTime);
+        }
+
+        int oldCount = old != null ? old.size() : 0;
+        int count = 0;
+        for (int i = 0; i < oldCount; i++) {
+            if (keepOld(old, i, replaceStart, replaceEnd, now)) {
+                count++;
+            }
+        }
+        for (ExtendConnection.ProgramEntry program : programs) {
+            if (program.endTime > now) {
+                count++;
+            }
+        }
+
+        Schedule schedule = new Schedule(count);
+        int out = 0;
+        int oldIndex = 0;
+
+        // Old programs before the replaced range, then the new ones, then the
+        // old ones after it
+        while (oldIndex < oldCount && old.starts[oldIndex] < replaceStart) {
+            if (keepOld(old, oldIndex, replaceStart, replaceEnd, now)) {
+                copy(schedule, out++, old.starts[oldIndex], old.ends[oldIndex], old.titles[oldIndex]);
+            }
+            oldIndex++;
+        }
+        for (ExtendConnection.ProgramEntry program : programs) {
+            if (program.endTime > now) {
+                copy(schedule, out++, program.startTime, program.endTime, program.title);
+            }
+        }
+        while (oldIndex < oldCount) {
+            if (keepOld(old, oldIndex, replaceStart, replaceEnd, now)) {
+                copy(schedule, out++, old.starts[oldIndex], old.ends[oldIndex], old.titles[oldIndex]);
+            }
+            oldIndex++;
+        }
+
+        return schedule;
+    }
+
+    private static boolean keepOld(Schedule old, int i, long replaceStart, long replaceEnd, long now) {
+        return old.ends[i] > now && (old.ends[i] <= replaceStart || old.starts[i] >= replaceEnd);
+    }
+
+    private static void copy(Schedule schedule, int i, long start, long end, String title) {
+        schedule.starts[i] = start;
+        schedule.ends[i] = end;
+        schedule.titles[i] = title;
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.cgutman.openwtv.protocol;
+
+// Logging for the protocol and HLS code, which doesn't depend on the Android
+// framework so that it can also run on a plain JVM. The app installs a sink
+// that forwards to logcat. Until then, messages go to standard error.
+public class ProtocolLog {
+    public interface Sink {
+        void debug(String message);
+        void info(String message);
+        void warn(String message, Throwable t);
+    }
+
+    private static volatile Sink sink = new Sink() {
+        @Override
+        public void debug(String message) {
+            System.err.println(message);
+        }
+
+        @Override
+        public void info(String message) {
+            System.err.println(message);
+        }
+
+        @Override
+        public void warn(String message, Throwable t) {
+            System.err.println(message);
+            if (t != null) {
+                t.printStackTrace();
+            }
+        }
+    };
+
+    private ProtocolLog() {}
+
+    public static void setSink(Sink newSink) {
+        sink = newSink;
+    }
+
+    public static void d(String message) {
+        sink.debug(message);
+    }
+
+    public static void i(String message) {
+        sink.info(message);
+    }
+
+    public static void w(String message) {
+        sink.warn(message, null);
+    }
+
+    public static void w(String message, Throwable t) {
+        sink.warn(message, t);
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.io.IOException;
+
+// Thrown when the server answers a request with a non-ok rsp status
+public class RequestFailedException extends IOException {
+    // The err code the server sends when it doesn't recognize our session ID
+    // (expired, logged out, server restarted). The service API's error codes
+    // aren't published, so this is the only one we act on; any other code is
+    // reported as a plain failure rather than guessed at from its message. The
+    // fake server in the bench module sends this code too.
+    public static final String INVALID_SESSION_CODE = "2";
+
+    private final String status;
+    private final String errorCode;
+    private final String errorMessage;
+
+    RequestFailedException(String status, String errorCode, String errorMessage) {
+        super(buildMessage(status, errorMessage));
+        this.status = status;
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+    }
+
+    private static String buildMessage(String status, String errorMessage) {
+        if (errorMessage != null) {
+            return "Request failed: "+status+" ("+errorMessage+")";
+        }
+        else {
+            return "Request failed: "+status;
+        }
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    // Returns true if the server refused the request because it no
+    // longer recognizes our session ID
+    public boolean isSessionRejected() {
+        return INVALID_SESSION_CODE.equals(errorCode);
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.cgutman.openwtv.protocol;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+class ResponseParser {
+    private static XmlPullParserFactory factory;
+
+    private ResponseParser() {}
+
+    private static synchronized XmlPullParserFactory getFactory() throws XmlPullParserException {
+        // Creating the factory is expensive because it has to look up the
+        // parser implementation, so we only do it once per process.
+        if (factory == null) {
+            factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+        }
+        return factory;
+    }
+
+    static XmlPullParser newParser(InputStream in) throws IOException {
+        try {
+            XmlPullParser xpp = getFactory().newPullParser();
+            xpp.setInput(in, null);
+            return xpp;
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static void verifyResponseStatus(XmlPullParser xpp) throws IOException {
+        String statusMsg = xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "stat");
+        if (!"ok".equals(statusMsg)) {
+            String errorCode = null;
+            String errorMessage = null;
+
+            // Failed responses carry the reason in an err element right after rsp
+            try {
+                int eventType = xpp.next();
+                while (eventType != XmlPullParser.START_TAG && eventType != XmlPullParser.END_DOCUMENT) {
+                    eventType = xpp.next();
+                }
+                if (eventType == XmlPullParser.START_TAG && xpp.getName().equals("err")) {
+                    errorCode = xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "code");
+                    errorMessage = xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "msg");
+                }
+            } catch (XmlPullParserException e) {
+                // The status is all we really need
+            }
+
+            throw new RequestFailedException(statusMsg, errorCode, errorMessage);
+        }
+    }
+
+    // Verifies the response status and collects the text of the first occurrence
+    // of each of the given tags in a single pass over the response. Entries for
+    // tags that are not present in the response are left null.
+    static String[] parseFields(XmlPullParser xpp, String... tagnames) throws IOException {
+        String[] values = new String[tagnames.length];
+        int remaining = tagnames.length;
+        boolean statusVerified = false;
+
+        try {
+            String currentTag = null;
+            int eventType = xpp.getEventType();
+
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                switch (eventType) {
+                    case (XmlPullParser.START_TAG):
+                        currentTag = xpp.getName();
+                        if (currentTag.equals("rsp")) {
+                            verifyResponseStatus(xpp);
+                            statusVerified = true;
+                        }
+                        break;
+                    case (XmlPullParser.END_TAG):
+                        // Text after a closing tag belongs to the parent, which
+                        // is never one of the leaf fields we're looking for
+                        currentTag = null;
+                        break;
+                    case (XmlPullParser.TEXT):
+                        if (currentTag != null) {
+                            for (int i = 0; i < tagnames.length; i++) {
+                                if (values[i] == null && tagnames[i].equals(currentTag)) {
+                                    values[i] = xpp.getText();
+                                    remaining--;
+                                }
+                            }
+                        }
+                        break;
+                }
+
+                // Stop early once we have everything we came for
+                if (statusVerified && remaining == 0) {
+                    break;
+                }
+
+                eventType = xpp.next();
+            }
+        } catch (XmlPullParserException e) {
+            // Encapsulate the XMLPPE into an IOException
+            throw new IOException(e);
+        }
+
+        return values;
+    }
+
+    static String[] parseFields(InputStream in, String... tagnames) throws IOException {
+        return parseFields(newParser(in), tagnames);
+    }
+}
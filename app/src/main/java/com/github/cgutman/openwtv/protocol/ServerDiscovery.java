@@ -0,0 +1,304 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Finds Extend servers on the local network. Every address on the subnets
+// of our interfaces is probed with a non-blocking TCP connect to the Extend
+// port, hundreds at a time on a single selector thread. Anything that accepts
+// the connection is then asked for a session.initiate to make sure it really
+// is an Extend server. Everything has to finish inside the time budget, so
+// the addresses most likely to have a server, those in the same /24 as us,
+// are probed first.
+public class ServerDiscovery {
+    public static final int DEFAULT_PORT = 7799;
+
+    private static final int MAX_IN_FLIGHT = 256;
+
+    // Don't scan more than a /22 around our own address
+    private static final int MIN_PREFIX_LENGTH = 22;
+
+    // Share of the budget left for confirming the servers we found
+    private static final int CONFIRM_BUDGET_PERCENT = 30;
+
+    // The candidates that accepted a connection, and how many of the rest
+    // hadn't been probed or hadn't answered yet when the deadline passed
+    static class ScanResult {
+        final List<InetSocketAddress> open;
+        final int unfinished;
+
+        ScanResult(List<InetSocketAddress> open, int unfinished) {
+            this.open = open;
+            this.unfinished = unfinished;
+        }
+    }
+
+    private final ExtendTransport transport;
+    private volatile boolean complete = true;
+
+    public ServerDiscovery(ExtendTransport transport) {
+        this.transport = transport;
+    }
+
+    // Returns false if the last discover() ran out of time before it heard
+    // from every address, so a server may have been missed
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // Returns the servers that answered within the budget. The known servers,
+    // typically the results of the last scan, are probed before anything else.
+    public List<InetSocketAddress> discover(List<InetSocketAddress> known, int port, long budgetMs) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        long scanDeadline = System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(budgetMs * (100 - CONFIRM_BUDGET_PERCENT) / 100);
+
+        LinkedHashSet<InetSocketAddress> candidates = new LinkedHashSet<InetSocketAddress>(known);
+        for (InetAddress address : getSubnetAddresses()) {
+            candidates.add(new InetSocketAddress(address, port));
+        }
+
+        ScanResult scan = scan(new ArrayList<InetSocketAddress>(candidates), scanDeadline);
+        if (scan.unfinished > 0) {
+            ProtocolLog.w("Discovery ran out of time with "+scan.unfinished+" of "+candidates.size()+
+                    " addresses unanswered");
+        }
+
+        boolean[] confirmedAll = new boolean[1];
+        List<InetSocketAddress> servers = confirm(scan.open, deadline, confirmedAll);
+        complete = scan.unfinished == 0 && confirmedAll[0];
+        return servers;
+    }
+
+    // Every IPv4 address on the subnets of our active, non-loopback interfaces,
+    // with the ones in our own /24s first
+    static List<InetAddress> getSubnetAddresses() throws SocketException {
+        ArrayList<InetAddress> nearby = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> rest = new ArrayList<InetAddress>();
+
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        if (interfaces == null) {
+            return nearby;
+        }
+
+        for (NetworkInterface iface : Collections.list(interfaces)) {
+            if (!iface.isUp() || iface.isLoopback()) {
+                continue;
+            }
+
+            for (InterfaceAddress ifaceAddress : iface.getInterfaceAddresses()) {
+                if (!(ifaceAddress.getAddress() instanceof Inet4Address)) {
+                    continue;
+                }
+
+                byte[] raw = ifaceAddress.getAddress().getAddress();
+                int self = ((raw[0] & 0xFF) << 24) | ((raw[1] & 0xFF) << 16) | ((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF);
+
+                addSubnetHosts(self, Math.max(ifaceAddress.getNetworkPrefixLength(), MIN_PREFIX_LENGTH), nearby, rest);
+            }
+        }
+
+        nearby.addAll(rest);
+        return nearby;
+    }
+
+    // Adds the hosts of the subnet other than ourselves, those in our /24 to
+    // nearby and the others to rest
+    static void addSubnetHosts(int self, int prefixLength, List<InetAddress> nearby, List<InetAddress> rest) {
+        if (prefixLength >= 31) {
+            return;
+        }
+
+        int mask = -1 << (32 - prefixLength);
+        int network = self & mask;
+        int broadcast = network | ~mask;
+
+        for (int host = network + 1; host < broadcast; host++) {
+            if (host == self) {
+                continue;
+            }
+            try {
+                InetAddress address = InetAddress.getByAddress(new byte[] {
+                        (byte) (host >>> 24), (byte) (host >>> 16), (byte) (host >>> 8), (byte) host});
+                ((host >>> 8) == (self >>> 8) ? nearby : rest).add(address);
+            } catch (IOException e) {
+                // Can't happen with a 4 byte address
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // Finds the candidates that accept a TCP connection before the deadline.
+    // They're returned in the order they were given.
+    static ScanResult scan(List<InetSocketAddress> candidates, long deadline) throws IOException {
+        boolean[] accepted = new boolean[candidates.size()];
+        Selector selector = Selector.open();
+        int next = 0;
+        int inFlight = 0;
+
+        try {
+
+            while (next < candidates.size() || inFlight > 0) {
+                // Keep the pipeline full
+                while (next < candidates.size() && inFlight < MAX_IN_FLIGHT) {
+                    int index = next++;
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(candidates.get(index))) {
+                            accepted[index] = true;
+                            channel.close();
+                        }
+                        else {
+                            channel.register(selector, SelectionKey.OP_CONNECT, index);
+                            inFlight++;
+                        }
+                    } catch (IOException e) {
+                        // Unreachable right away
+                        channel.close();
+                    }
+                }
+
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    break;
+                }
+                if (inFlight == 0) {
+                    continue;
+                }
+
+                selector.select(remainingMs);
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            accepted[(Integer) key.attachment()] = true;
+                        }
+                    } catch (IOException e) {
+                        // Refused or unreachable
+                    }
+
+                    key.cancel();
+                    channel.close();
+                    inFlight--;
+                }
+            }
+        } finally {
+            // Give up on anything still connecting
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {}
+            }
+            selector.close();
+        }
+
+        ArrayList<InetSocketAddress> open = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < accepted.length; i++) {
+            if (accepted[i]) {
+                open.add(candidates.get(i));
+            }
+        }
+        return new ScanResult(open, candidates.size() - next + inFlight);
+    }
+
+    // Asks each candidate for a session, concurrently, and returns the ones
+    // that answered like an Extend server before the deadline. finishedOut[0]
+    // is set if every candidate answered in time.
+    private List<InetSocketAddress> confirm(List<InetSocketAddress> candidates, long deadline,
+                                            boolean[] finishedOut) throws IOException {
+        final boolean[] confirmed = new boolean[candidates.size()];
+        final CountDownLatch done = new CountDownLatch(candidates.size());
+        ArrayList<AsyncRequest<Boolean>> requests = new ArrayList<AsyncRequest<Boolean>>();
+
+        for (int i = 0; i < candidates.size(); i++) {
+            final int index = i;
+            final InetSocketAddress candidate = candidates.get(i);
+
+            requests.add(AsyncRequest.execute(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return isExtendServer(candidate);
+                }
+            }, new AsyncRequest.Callback<Boolean>() {
+                @Override
+                public void onSuccess(Boolean result) {
+                    synchronized (confirmed) {
+                        confirmed[index] = result;
+                    }
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    done.countDown();
+                }
+            }));
+        }
+
+        try {
+            finishedOut[0] = done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (!finishedOut[0]) {
+                ProtocolLog.w("Discovery ran out of time with "+done.getCount()+" of "+candidates.size()+
+                        " servers unconfirmed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Drop the connections to anything that's too slow to answer
+            for (AsyncRequest<Boolean> request : requests) {
+                request.cancel();
+            }
+        }
+
+        ArrayList<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        synchronized (confirmed) {
+            for (int i = 0; i < confirmed.length; i++) {
+                if (confirmed[i]) {
+                    servers.add(candidates.get(i));
+                }
+            }
+        }
+        return servers;
+    }
+
+    private boolean isExtendServer(InetSocketAddress candidate) throws IOException {
+        String url = "http://" + candidate.getAddress().getHostAddress() + ":" + candidate.getPort() +
+                "/services/service?method=session.initiate&ver=1.0&device=iPad";
+
+        InputStream in = transport.get(url);
+        try {
+            String[] fields = ResponseParser.parseFields(in, "sid", "salt");
+            return fields[0] != null && fields[1] != null;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.utils.IntIntMap;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// The Extend servers the user has connected to, and what we know about how
+// busy and how reachable each of them is. Tune-ins ask the pool which servers
+// to try for a channel, in order of preference.
+//
+// While anyone is interested, a background thread connects to every server
+// to see that it's up and how long it takes to answer, and picks up the
+// lineup of any server we haven't fetched one from recently.
+// Servers that reject a transcode are skipped for a while, since that almost
+// always means all of their tuners are busy.
+//
+// Each server numbers its channels with IDs of its own, so a channel is
+// matched up between servers by its number, and by its name where a lineup
+// has more than one channel with the same number.
+public class ServerPool {
+    private static final ServerPool instance = new ServerPool();
+
+    private static final long PROBE_INTERVAL_MS = 30 * 1000;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+    private static final long LINEUP_MAX_AGE_MS = 10 * 60 * 1000;
+    private static final long REJECTED_BACKOFF_MS = 60 * 1000;
+
+    // Weight of a new latency sample in the running average
+    private static final double LATENCY_ALPHA = 0.3;
+
+    public static class Server {
+        public final String address;
+        public final int port;
+
+        // Written under the ServerPool monitor
+        private volatile String password;
+
+        // The following are protected by the ServerPool monitor
+        private boolean healthy = true;
+        private long latencyMs = -1;
+        private int activeTranscodes;
+        private long rejectedUntil;
+        private Lineup lineup;
+        private long lineupTime;
+
+        Server(String address, int port, String password) {
+            this.address = address;
+            this.port = port;
+            this.password = password;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getKey() {
+            return address + ":" + port;
+        }
+
+        @Override
+        public String toString() {
+            return getKey();
+        }
+    }
+
+    // A server to try for a channel, with the channel's ID on that server
+    public static class Candidate {
+        public final Server server;
+        public final int channelId;
+
+        public Candidate(Server server, int channelId) {
+            this.server = server;
+            this.channelId = channelId;
+        }
+    }
+
+    // A server's channels sorted by number, indexed by ID
+    private static class Lineup {
+        final ExtendConnection.ChannelEntry[] channels;
+        final IntIntMap indexById;
+
+        Lineup(List<ExtendConnection.ChannelEntry> channelList) {
+            channels = channelList.toArray(new ExtendConnection.ChannelEntry[channelList.size()]);
+            Arrays.sort(channels, new Comparator<ExtendConnection.ChannelEntry>() {
+                @Override
+                public int compare(ExtendConnection.ChannelEntry lhs, ExtendConnection.ChannelEntry rhs) {
+                    return lhs.number < rhs.number ? -1 : (lhs.number == rhs.number ? 0 : 1);
+                }
+            });
+
+            indexById = new IntIntMap(channels.length);
+            for (int i = 0; i < channels.length; i++) {
+                indexById.put(channels[i].channelId, i);
+            }
+        }
+
+        ExtendConnection.ChannelEntry getChannel(int channelId) {
+            int index = indexById.get(channelId, -1);
+            return index >= 0 ? channels[index] : null;
+        }
+
+        // Returns the ID of our channel with the same number as the given
+        // one, using the name to pick between channels that share the number,
+        // or -1 if we don't have it
+        int findChannelId(ExtendConnection.ChannelEntry channel) {
+            int low = 0;
+            int high = channels.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (channels[mid].number < channel.number) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+
+            int end = low;
+            while (end < channels.length && channels[end].number == channel.number) {
+                end++;
+            }
+
+            if (end - low == 1) {
+                return channels[low].channelId;
+            }
+            for (int i = low; i < end; i++) {
+                if (channels[i].name != null && channels[i].name.equalsIgnoreCase(channel.name)) {
+                    return channels[i].channelId;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final ArrayList<Server> servers = new ArrayList<Server>();
+
+    // The following are protected by the ServerPool monitor
+    private ScheduledExecutorService probeExecutor;
+    private ScheduledFuture<?> probeFuture;
+    private int probeUsers;
+
+    private ServerPool() {}
+
+    public static ServerPool getInstance() {
+        return instance;
+    }
+
+    // Adds a server to the pool, or updates the password of one that's already
+    // in it. Returns the pool's entry for the server, which stays the same
+    // entry across password changes so that what we know about its load
+    // carries over.
+    public synchronized Server add(String address, int port, String password) {
+        Server existing = find(address, port);
+        if (existing != null) {
+            existing.password = password;
+            return existing;
+        }
+
+        Server server = new Server(address, port, password);
+        servers.add(server);
+        return server;
+    }
+
+    public synchronized void remove(String address, int port) {
+        Server server = find(address, port);
+        if (server != null) {
+            servers.remove(server);
+        }
+    }
+
+    public synchronized Server find(String address, int port) {
+        for (Server server : servers) {
+            if (server.address.equals(address) && server.port == port) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<Server> getServers() {
+        return new ArrayList<Server>(servers);
+    }
+
+    // Returns the servers to try for a channel of the origin server, best
+    // first: healthy servers that carry the channel and haven't turned us
+    // away recently, with the fewest of our transcodes and then the lowest
+    // latency first. Other servers are only considered once we have both
+    // their lineup and the origin's, since we can't match the channel up
+    // without them.
+    public synchronized List<Candidate> selectServers(Server origin, int channelId) {
+        long now = now();
+        ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+        for (Server server : servers) {
+            if (server.healthy && server.rejectedUntil <= now) {
+                int serverChannelId = findChannelId(origin, channelId, server);
+                if (serverChannelId != -1) {
+                    candidates.add(new Candidate(server, serverChannelId));
+                }
+            }
+        }
+
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate lhsCandidate, Candidate rhsCandidate) {
+                Server lhs = lhsCandidate.server;
+                Server rhs = rhsCandidate.server;
+                if (lhs.activeTranscodes != rhs.activeTranscodes) {
+                    return lhs.activeTranscodes - rhs.activeTranscodes;
+                }
+                long lhsLatency = effectiveLatency(lhs);
+                long rhsLatency = effectiveLatency(rhs);
+                return lhsLatency < rhsLatency ? -1 : (lhsLatency > rhsLatency ? 1 : 0);
+            }
+        });
+
+        return candidates;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    // Servers we haven't measured yet sort after the ones we have
+    private static long effectiveLatency(Server server) {
+        return server.latencyMs >= 0 ? server.latencyMs : Long.MAX_VALUE;
+    }
+
+    // Returns the ID on the target server of a channel of the origin server,
+    // or -1 if the target doesn't carry it or we can't tell yet
+    public synchronized int findChannelId(Server origin, int channelId, Server target) {
+        if (target == origin) {
+            // Unless we know the origin doesn't have it after all
+            return origin.lineup == null || origin.lineup.getChannel(channelId) != null ? channelId : -1;
+        }
+        if (origin.lineup == null || target.lineup == null) {
+            return -1;
+        }
+
+        ExtendConnection.ChannelEntry channel = origin.lineup.getChannel(channelId);
+        return channel != null ? target.lineup.findChannelId(channel) : -1;
+    }
+
+    public synchronized void setLineup(Server server, List<ExtendConnection.ChannelEntry> channels) {
+        server.lineup = new Lineup(channels);
+        server.lineupTime = now();
+    }
+
+    public synchronized void onTranscodeStarted(Server server) {
+        server.activeTranscodes++;
+    }
+
+    public synchronized void onTranscodeStopped(Server server) {
+        if (server.activeTranscodes > 0) {
+            server.activeTranscodes--;
+        }
+    }
+
+    // The server refused to start a transcode, most likely for lack of a tuner
+    public synchronized void onTranscodeRejected(Server server) {
+        server.rejectedUntil = now() + REJECTED_BACKOFF_MS;
+    }
+
+    // We couldn't reach the server. It's skipped until a probe gets through.
+    public synchronized void onUnreachable(Server server) {
+        server.healthy = false;
+    }
+
+    private synchronized void onProbed(Server server, long latencyMs) {
+        server.healthy = true;
+        if (server.latencyMs < 0) {
+            server.latencyMs = latencyMs;
+        }
+        else {
+            server.latencyMs = (long) (LATENCY_ALPHA * latencyMs + (1 - LATENCY_ALPHA) * server.latencyMs);
+        }
+    }
+
+    private synchronized boolean needsLineup(Server server) {
+        return server.lineup == null || now() - server.lineupTime > LINEUP_MAX_AGE_MS;
+    }
+
+    // Starts the background probes if they aren't already running. Every call
+    // must be balanced by a call to stopProbing().
+    public synchronized void startProbing() {
+        if (probeUsers++ > 0) {
+            return;
+        }
+
+        if (probeExecutor == null) {
+            probeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Server Probe");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        probeFuture = probeExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeAll();
+            }
+        }, 0, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopProbing() {
+        if (probeUsers == 0 || --probeUsers > 0) {
+            return;
+        }
+
+        probeFuture.cancel(false);
+        probeFuture = null;
+    }
+
+    // Probes every server in turn. Runs on the probe thread.
+    void probeAll() {
+        for (Server server : getServers()) {
+            long start = System.nanoTime();
+            try {
+                probe(server);
+            } catch (IOException e) {
+                ProtocolLog.w("Probe of "+server+" failed: "+e.getMessage(), null);
+                onUnreachable(server);
+                continue;
+            }
+            onProbed(server, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            if (needsLineup(server)) {
+                try {
+                    fetchLineup(server);
+                } catch (IOException e) {
+                    ProtocolLog.w("Unable to fetch the lineup of "+server+": "+e.getMessage(), null);
+                }
+            }
+        }
+    }
+
+    // Connecting is all it takes to see that the server is up and how far
+    // away it is. Anything more, like a session.initiate, leaves state on the
+    // server that we'd never clean up.
+    static void probe(Server server) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getByName(server.address), server.port),
+                    PROBE_TIMEOUT_MS);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void fetchLineup(Server server) throws IOException {
+        ExtendConnection connection = SessionManager.getInstance().getConnection(
+                InetAddress.getByName(server.address), server.port, server.getPassword());
+
+        setLineup(server, connection.requestChannelList());
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+// Keeps one logged in connection per server for the whole process, so moving
+// between activities doesn't cost a new session.initiate and session.login.
+// Connections log in again by themselves if the server rejects their session.
+//
+// Logging in takes a couple of round trips, so it's done without holding the
+// SessionManager lock. Callers that want the same server while a login to it
+// is in progress wait for that login instead of starting their own.
+public class SessionManager {
+    private static final SessionManager instance = new SessionManager();
+
+    // A login in progress. The result is set before the latch is released.
+    private static class PendingLogin {
+        final String password;
+        final CountDownLatch done = new CountDownLatch(1);
+        ExtendConnection connection;
+        IOException error;
+
+        PendingLogin(String password) {
+            this.password = password;
+        }
+    }
+
+    // The following are protected by the SessionManager monitor
+    private final HashMap<String, ExtendConnection> connections = new HashMap<String, ExtendConnection>();
+    private final HashMap<String, PendingLogin> pendingLogins = new HashMap<String, PendingLogin>();
+    private ExtendTransport transport = new MeteredTransport(KeepAliveTransport.getInstance());
+
+    private SessionManager() {}
+
+    public static SessionManager getInstance() {
+        return instance;
+    }
+
+    // Replaces the transport used for new connections, for example with a
+    // ShapedTransport to try the app on a slow network. Existing sessions are
+    // dropped so that everything goes through the new transport.
+    public synchronized void setTransport(ExtendTransport transport) {
+        this.transport = transport;
+        connections.clear();
+        pendingLogins.clear();
+    }
+
+    public synchronized ExtendTransport getTransport() {
+        return transport;
+    }
+
+    private static String buildKey(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    public ExtendConnection getConnection(InetAddress address, int port, String password) throws IOException {
+        String key = buildKey(address, port);
+
+        for (;;) {
+            PendingLogin login;
+            ExtendTransport loginTransport;
+            boolean ours = false;
+
+            synchronized (this) {
+                ExtendConnection conn = connections.get(key);
+                if (conn != null && conn.usesPassword(password)) {
+                    return conn;
+                }
+
+                login = pendingLogins.get(key);
+                if (login == null || !login.password.equals(password)) {
+                    login = new PendingLogin(password);
+                    pendingLogins.put(key, login);
+                    ours = true;
+                }
+                loginTransport = transport;
+            }
+
+            if (ours) {
+                return login(key, login, loginTransport, address, port);
+            }
+
+            try {
+                login.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for login");
+            }
+
+            if (login.connection != null) {
+                return login.connection;
+            }
+            if (!(login.error instanceof InterruptedIOException)) {
+                throw login.error;
+            }
+
+            // Whoever was logging in was cancelled, which says nothing about
+            // the server, so try again ourselves
+        }
+    }
+
+    private ExtendConnection login(String key, PendingLogin login, ExtendTransport loginTransport,
+                                   InetAddress address, int port) throws IOException {
+        try {
+            login.connection = ExtendConnection.establishConnection(loginTransport, address, port, login.password);
+            return login.connection;
+        } catch (IOException e) {
+            login.error = e;
+            throw e;
+        } catch (RuntimeException e) {
+            login.error = new IOException(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                if (pendingLogins.get(key) == login) {
+                    pendingLogins.remove(key);
+
+                    // Unless the transport was replaced while we were at it
+                    if (login.connection != null && transport == loginTransport) {
+                        connections.put(key, login.connection);
+                    }
+                }
+            }
+            login.done.countDown();
+        }
+    }
+
+    // Logs in a new session that isn't shared with anyone else, for work
+    // that shouldn't disturb the pooled session's transcode
+    public ExtendConnection newConnection(InetAddress address, int port, String password) throws IOException {
+        return ExtendConnection.establishConnection(getTransport(), address, port, password);
+    }
+
+    public synchronized void invalidate(InetAddress address, int port) {
+        connections.remove(buildKey(address, port));
+    }
+}
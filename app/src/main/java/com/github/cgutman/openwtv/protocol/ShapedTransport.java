@@ -0,0 +1,90 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+// Transport that wraps another one to make the network look slower than it
+// is. Every request is delayed by a fixed latency before it's sent, and the
+// response body is throttled to the given bandwidth. This is for reproducing
+// a slow Wi-Fi link against a server on the bench.
+public class ShapedTransport implements ExtendTransport {
+    private final ExtendTransport transport;
+    private final long latencyMs;
+    private final long bytesPerSecond;
+
+    // A bandwidth of 0 or less means the responses aren't throttled
+    public ShapedTransport(ExtendTransport transport, long latencyMs, long bytesPerSecond) {
+        this.transport = transport;
+        this.latencyMs = latencyMs;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    private static void sleep(long ms) throws InterruptedIOException {
+        if (ms <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public InputStream get(String url) throws IOException {
+        sleep(latencyMs);
+
+        InputStream in = transport.get(url);
+        if (bytesPerSecond <= 0) {
+            return in;
+        }
+        return new ThrottledStream(in);
+    }
+
+    private class ThrottledStream extends FilterInputStream {
+        private final long startTime = System.nanoTime();
+        private long bytesRead;
+
+        ThrottledStream(InputStream in) {
+            super(in);
+        }
+
+        // Waits until the bytes read so far would have taken that long at our bandwidth
+        private void throttle(int count) throws InterruptedIOException {
+            if (count <= 0) {
+                return;
+            }
+
+            bytesRead += count;
+            long dueMs = bytesRead * 1000 / bytesPerSecond;
+            long elapsedMs = (System.nanoTime() - startTime) / 1000000;
+            sleep(dueMs - elapsedMs);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ret = super.read();
+            if (ret != -1) {
+                throttle(1);
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int ret = super.read(b, off, len);
+            throttle(ret);
+            return ret;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long ret = super.skip(n);
+            throttle((int) Math.min(ret, Integer.MAX_VALUE));
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.cgutman.openwtv.protocol;
+
+// Picks the delay before the next channel.transcode.status poll based on how
+// quickly the transcode percentage has been going up. Fast transcodes get
+// polled often so we notice completion promptly, while slow ones are backed
+// off so we don't hammer the server.
+public class TranscodePollScheduler {
+    private static final long INITIAL_DELAY_MS = 250;
+    private static final long MIN_DELAY_MS = 100;
+    private static final long MAX_DELAY_MS = 2000;
+
+    private long lastPollTime = -1;
+    private int lastPercentage = -1;
+    private long nextDelay = INITIAL_DELAY_MS;
+
+    public long getInitialDelay() {
+        return INITIAL_DELAY_MS;
+    }
+
+    // Records a poll result and returns how long to wait before the next one
+    public long onStatus(long now, int percentage) {
+        if (lastPollTime >= 0) {
+            int progress = percentage - lastPercentage;
+            long elapsed = now - lastPollTime;
+
+            if (progress <= 0 || elapsed <= 0) {
+                // No progress since the last poll, so back off
+                nextDelay = Math.min(MAX_DELAY_MS, nextDelay * 3 / 2);
+            }
+            else {
+                // Estimate when we'll hit 100% and aim to poll at roughly
+                // half that time so we don't overshoot by much
+                long remainingMs = (100 - percentage) * elapsed / progress;
+                nextDelay = Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, remainingMs / 2));
+            }
+        }
+
+        lastPollTime = now;
+        lastPercentage = percentage;
+
+        return nextDelay;
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.cgutman.openwtv.utils;
+
+// Open-addressing hash map from int to int that doesn't box its keys or values
+public class IntIntMap {
+    private static final int FREE_KEY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    // The free key can't be stored in the table itself
+    private boolean hasFreeKey;
+    private int freeKeyValue;
+
+    public IntIntMap(int expectedSize) {
+        int capacity = 4;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        java.util.Arrays.fill(keys, FREE_KEY);
+    }
+
+    private int slot(int key) {
+        // Spread the bits since channel IDs are often sequential
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public int get(int key, int defaultValue) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? freeKeyValue : defaultValue;
+        }
+
+        int i = slot(key);
+        for (;;) {
+            int k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == FREE_KEY) {
+                return defaultValue;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey;
+        }
+
+        int i = slot(key);
+        for (;;) {
+            int k = keys[i];
+            if (k == key) {
+                return true;
+            }
+            if (k == FREE_KEY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                size++;
+            }
+            freeKeyValue = value;
+            return;
+        }
+
+        int i = slot(key);
+        for (;;) {
+            int k = keys[i];
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            if (k == FREE_KEY) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+
+                // Keep the load factor at or below 1/2
+                if (size * 2 > keys.length) {
+                    rehash();
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+
+        allocate(oldKeys.length * 2);
+        size = hasFreeKey ? 1 : 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE_KEY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
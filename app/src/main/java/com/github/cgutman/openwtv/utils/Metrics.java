@@ -0,0 +1,148 @@
+package com.github.cgutman.openwtv.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Process-wide timing histograms and counters for the tuning path. Timings
+// are recorded as spans:
+//
+//     long start = Metrics.begin();
+//     ...
+//     Metrics.end(Metrics.LOGIN, start);
+//
+// Recording never takes a lock, so it's safe to do on any thread including
+// the UI thread. This class has no Android dependencies.
+public class Metrics {
+    public static final String DNS = "dns";
+    public static final String LOGIN = "login";
+    public static final String SETTING_SET = "setting.set";
+    public static final String TRANSCODE_INITIATE = "transcode.initiate";
+    public static final String TRANSCODE_STATUS = "transcode.status";
+    public static final String REQUEST = "request";
+    public static final String PREPARE = "prepare";
+    public static final String TUNE = "tune";
+
+    public static final String REQUESTS = "requests";
+    public static final String REQUEST_ERRORS = "request errors";
+    public static final String BYTES_READ = "bytes read";
+    public static final String PROFILE_SWITCHES = "profile switches";
+
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private Metrics() {}
+
+    // Keeps the last RING_SIZE samples in a ring that writers claim slots in
+    // with an atomic increment, plus running totals over every sample
+    public static class Histogram {
+        private static final int RING_SIZE = 128;
+
+        private final AtomicLongArray ring = new AtomicLongArray(RING_SIZE);
+        private final AtomicLong next = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            long index = next.getAndIncrement();
+            ring.set((int) (index % RING_SIZE), value);
+            sum.addAndGet(value);
+
+            long currentMax;
+            do {
+                currentMax = max.get();
+            } while (value > currentMax && !max.compareAndSet(currentMax, value));
+        }
+
+        public long getCount() {
+            return next.get();
+        }
+
+        public long getMean() {
+            long count = next.get();
+            return count == 0 ? 0 : sum.get() / count;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        // Returns the given percentile of the most recent samples. A sample
+        // being written concurrently may or may not be included.
+        public long getPercentile(int percentile) {
+            int count = (int) Math.min(next.get(), RING_SIZE);
+            if (count == 0) {
+                return 0;
+            }
+
+            long[] samples = new long[count];
+            for (int i = 0; i < count; i++) {
+                samples[i] = ring.get(i);
+            }
+            Arrays.sort(samples);
+
+            return samples[Math.min(count - 1, count * percentile / 100)];
+        }
+    }
+
+    public static Histogram getHistogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    private static AtomicLong getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    public static long begin() {
+        return System.nanoTime();
+    }
+
+    // Records the time since begin() returned start, in milliseconds
+    public static void end(String name, long start) {
+        record(name, (System.nanoTime() - start) / 1000000);
+    }
+
+    public static void record(String name, long ms) {
+        getHistogram(name).record(ms);
+    }
+
+    public static void count(String name, long delta) {
+        getCounter(name).addAndGet(delta);
+    }
+
+    public static long getCount(String name) {
+        return getCounter(name).get();
+    }
+
+    // Both of these are sorted by name so reports come out in a stable order
+    public static Map<String, Histogram> getHistograms() {
+        return new TreeMap<String, Histogram>(histograms);
+    }
+
+    public static Map<String, Long> getCounters() {
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.cgutman.openwtv.utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+// Formats the current Metrics for the player's debug overlay and as JSON
+// that can be pulled off a device to compare servers and networks
+public class MetricsReport {
+    private MetricsReport() {}
+
+    public static JSONObject toJson() throws JSONException {
+        JSONObject timings = new JSONObject();
+        for (Map.Entry<String, Metrics.Histogram> entry : Metrics.getHistograms().entrySet()) {
+            Metrics.Histogram histogram = entry.getValue();
+
+            JSONObject stats = new JSONObject();
+            stats.put("count", histogram.getCount());
+            stats.put("mean", histogram.getMean());
+            stats.put("p50", histogram.getPercentile(50));
+            stats.put("p90", histogram.getPercentile(90));
+            stats.put("max", histogram.getMax());
+            timings.put(entry.getKey(), stats);
+        }
+
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, Long> entry : Metrics.getCounters().entrySet()) {
+            counters.put(entry.getKey(), entry.getValue());
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("timings_ms", timings);
+        report.put("counters", counters);
+        return report;
+    }
+
+    // One line per timing with its recent median and 90th percentile
+    public static String toText() {
+        StringBuilder str = new StringBuilder();
+
+        for (Map.Entry<String, Metrics.Histogram> entry : Metrics.getHistograms().entrySet()) {
+            Metrics.Histogram histogram = entry.getValue();
+            str.append(entry.getKey())
+                    .append(": p50 ").append(histogram.getPercentile(50))
+                    .append(" / p90 ").append(histogram.getPercentile(90))
+                    .append(" ms (n=").append(histogram.getCount())
+                    .append(")\n");
+        }
+
+        for (Map.Entry<String, Long> entry : Metrics.getCounters().entrySet()) {
+            str.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+
+        return str.toString();
+    }
+}
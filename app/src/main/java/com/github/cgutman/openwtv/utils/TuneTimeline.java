@@ -0,0 +1,59 @@
+package com.github.cgutman.openwtv.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+// Records how long each stage of tuning into a channel takes, measured
+// from the moment the channel was tapped
+public class TuneTimeline {
+    private static final String TAG = "OWTV";
+
+    public static final String TAP = "tap";
+    public static final String LOGIN = "login";
+    public static final String TRANSCODE_START = "transcode start";
+    public static final String FIRST_SEGMENT = "first segment";
+    public static final String FIRST_FRAME = "first frame";
+
+    private final long startTime;
+    private final ArrayList<String> events = new ArrayList<String>();
+    private final ArrayList<Long> times = new ArrayList<Long>();
+
+    public TuneTimeline(long tapTime) {
+        this.startTime = tapTime;
+        events.add(TAP);
+        times.add(tapTime);
+    }
+
+    public synchronized void mark(String event) {
+        events.add(event);
+        times.add(SystemClock.elapsedRealtime());
+    }
+
+    public synchronized long getElapsed(String event) {
+        int index = events.indexOf(event);
+        return index < 0 ? -1 : times.get(index) - startTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+
+        for (int i = 0; i < events.size(); i++) {
+            if (i != 0) {
+                str.append(" -> ");
+            }
+            str.append(events.get(i));
+            str.append(" +");
+            str.append(times.get(i) - startTime);
+            str.append("ms");
+        }
+
+        return str.toString();
+    }
+
+    public void log() {
+        Log.i(TAG, "Tune timeline: "+this);
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.CannedTransport;
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+// Parsing a channel.list response of each size, from memory so that only the
+// parser and the ChannelEntry objects it builds are measured
+@State(Scope.Benchmark)
+public class ChannelListBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int channels;
+
+    private ExtendConnection connection;
+
+    @Setup
+    public void setup() throws IOException {
+        CannedTransport transport = CannedTransport.withLogin()
+                .put("channel.list", ExtendResponses.channelList(ExtendResponses.syntheticLineup(channels)));
+        connection = ExtendConnection.establishConnection(transport, InetAddress.getLoopbackAddress(), 8089, "bench");
+    }
+
+    @Benchmark
+    public List<ExtendConnection.ChannelEntry> parseChannelList() throws IOException {
+        return connection.requestChannelListForGroup(0);
+    }
+}
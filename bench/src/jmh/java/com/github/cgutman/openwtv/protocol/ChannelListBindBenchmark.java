@@ -0,0 +1,65 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Scrolling the channel list from top to bottom, binding every row as it
+// comes on screen. bind goes through ChannelRowText, as
+// ChannelListAdapter.onBindViewHolder() does. stringBind is the old bind,
+// which formatted the number with ""+number and built the program text as a
+// new String every time.
+@State(Scope.Benchmark)
+public class ChannelListBindBenchmark {
+    @Param({"5000"})
+    public int channels;
+
+    private ChannelTable table;
+    private ProgramGuide guide;
+    private ChannelRowText text;
+    private long now;
+
+    @Setup
+    public void setup() {
+        table = ChannelTable.fromList(ExtendResponses.syntheticLineup(channels));
+        now = System.currentTimeMillis();
+        guide = SyntheticGuide.forTable(table, now);
+        text = new ChannelRowText();
+    }
+
+    @Benchmark
+    public int bind() {
+        int sum = 0;
+        for (int row = 0; row < table.size(); row++) {
+            text.bind(table, row, guide, now);
+            sum += text.getNumberLength() + text.getNameLength() + text.getProgramLength();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int stringBind() {
+        int sum = 0;
+        for (int row = 0; row < table.size(); row++) {
+            String number = "" + table.getNumber(row);
+
+            int channelId = table.getChannelId(row);
+            String current = guide.getNowTitle(channelId, now);
+            String next = guide.getNextTitle(channelId, now);
+            String programs = "";
+            if (current != null) {
+                programs = "Now: " + current;
+            }
+            if (next != null) {
+                programs += (programs.isEmpty() ? "" : "\n") + "Next: " + next;
+            }
+
+            sum += number.length() + table.getNameLength(row) + programs.length();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// One keystroke in the channel list's search box, cycling through name and
+// number queries of different lengths
+@State(Scope.Benchmark)
+public class ChannelSearchBenchmark {
+    private static final String[] QUERIES = {"a", "ab", "abc", "h", "hd", "di", "disc", "1", "12", "123", ""};
+
+    @Param({"5000"})
+    public int channels;
+
+    private ChannelSearchIndex index;
+    private int[] rows;
+    private int query;
+
+    @Setup
+    public void setup() {
+        ChannelTable table = ChannelTable.fromList(ExtendResponses.syntheticLineup(channels));
+        index = new ChannelSearchIndex(table);
+        rows = new int[table.size()];
+    }
+
+    @Benchmark
+    public int search() {
+        query = (query + 1) % QUERIES.length;
+        return index.search(QUERIES[query], rows);
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Refreshing a 5,000 channel lineup in the channel list. tableDiff is what
+// ChannelListAdapter.updateChannelList() does today: build a table from the
+// new list and diff it by channel ID. nestedLoops is the adapter's old
+// approach, which looked up every channel of each list in the other with a
+// linear scan and removed the stale ones from an ArrayList one at a time.
+//
+//   unchanged  the server sent the same lineup again
+//   edited     1% renamed, 50 removed and 50 added
+@State(Scope.Benchmark)
+public class ChannelTableDiffBenchmark {
+    @Param({"unchanged", "edited"})
+    public String refresh;
+
+    @Param({"5000"})
+    public int channels;
+
+    private List<ExtendConnection.ChannelEntry> oldList;
+    private List<ExtendConnection.ChannelEntry> newList;
+    private ChannelTable oldTable;
+
+    @Setup
+    public void setup() {
+        oldList = ExtendResponses.syntheticLineup(channels);
+        ArrayList<ExtendConnection.ChannelEntry> updated = new ArrayList<ExtendConnection.ChannelEntry>(oldList);
+
+        if (refresh.equals("edited")) {
+            for (int i = 0; i < updated.size(); i += 100) {
+                ExtendConnection.ChannelEntry entry = updated.get(i);
+                updated.set(i, new ExtendConnection.ChannelEntry(entry.channelId, entry.name + " 2",
+                        entry.number, entry.type));
+            }
+            updated.subList(channels / 2, channels / 2 + 50).clear();
+            for (int i = 0; i < 50; i++) {
+                updated.add(new ExtendConnection.ChannelEntry(-1 - i, "New " + i, channels + 100 + i, 0));
+            }
+        }
+
+        newList = updated;
+        oldTable = ChannelTable.fromList(oldList);
+    }
+
+    @Benchmark
+    public boolean tableDiff(final Blackhole bh) {
+        ChannelTable newTable = ChannelTable.fromList(newList);
+        return ChannelTableDiff.diff(oldTable, newTable, new ChannelTableDiff.Callback() {
+            @Override
+            public void onRemoved(int position, int count) {
+                bh.consume(position + count);
+            }
+
+            @Override
+            public void onInserted(int position, int count) {
+                bh.consume(position + count);
+            }
+
+            @Override
+            public void onChanged(int position, int count) {
+                bh.consume(position + count);
+            }
+        });
+    }
+
+    @Benchmark
+    public List<ExtendConnection.ChannelEntry> nestedLoops() {
+        ArrayList<ExtendConnection.ChannelEntry> list = new ArrayList<ExtendConnection.ChannelEntry>(oldList);
+
+        for (int i = 0; i < newList.size(); i++) {
+            boolean found = false;
+            for (int j = 0; j < list.size(); j++) {
+                if (newList.get(i).equals(list.get(j))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                list.add(newList.get(i));
+            }
+        }
+
+        for (int i = 0; i < list.size(); i++) {
+            boolean found = false;
+            for (int j = 0; j < newList.size(); j++) {
+                if (newList.get(j).equals(list.get(i))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                list.remove(i);
+                i--;
+            }
+        }
+
+        return list;
+    }
+}
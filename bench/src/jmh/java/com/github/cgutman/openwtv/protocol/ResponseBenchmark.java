@@ -0,0 +1,56 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.CannedTransport;
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.NoSuchAlgorithmException;
+
+// The small responses that are parsed on every tune and poll, and the hashing
+// done on every login
+@State(Scope.Benchmark)
+public class ResponseBenchmark {
+    private ExtendConnection connection;
+    private byte[] initiateResponse;
+    private byte[] digest;
+
+    @Setup
+    public void setup() throws IOException {
+        CannedTransport transport = CannedTransport.withLogin()
+                .put("channel.transcode.status", ExtendResponses.transcodeStatus("transcoding", false, 42));
+        connection = ExtendConnection.establishConnection(transport, InetAddress.getLoopbackAddress(), 8089, "bench");
+
+        initiateResponse = ExtendResponses.sessionInitiate("0123456789abcdef", "fedcba9876543210").getBytes("UTF-8");
+        digest = new byte[16];
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = (byte) (i * 17);
+        }
+    }
+
+    @Benchmark
+    public ExtendConnection.TranscodeStatus parseTranscodeStatus() throws IOException {
+        return connection.requestTranscodeStatus();
+    }
+
+    @Benchmark
+    public String[] parseFields() throws IOException {
+        return ResponseParser.parseFields(new ByteArrayInputStream(initiateResponse), "sid", "salt");
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return ExtendConnection.bytesToHex(digest);
+    }
+
+    @Benchmark
+    public String md5() throws NoSuchAlgorithmException {
+        return ExtendConnection.md5("password");
+    }
+}
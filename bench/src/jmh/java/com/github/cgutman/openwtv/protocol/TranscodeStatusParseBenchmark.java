@@ -0,0 +1,95 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Stack;
+
+// Parsing one channel.transcode.status response, which is polled every 500 ms
+// while a channel tunes. multiPass is how it used to be done: the body read
+// into a String, then one parse with a new parser factory to check the status
+// and one more for each field. singlePass is ResponseParser as used today.
+@State(Scope.Benchmark)
+public class TranscodeStatusParseBenchmark {
+    private byte[] response;
+
+    @Setup
+    public void setup() throws IOException {
+        response = ExtendResponses.transcodeStatus("transcoding", false, 42).getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public String[] singlePass() throws IOException {
+        return ResponseParser.parseFields(new ByteArrayInputStream(response), "status", "final", "percentage");
+    }
+
+    @Benchmark
+    public String[] multiPass() throws IOException {
+        String resp = readToString(new ByteArrayInputStream(response));
+
+        // Checks the status
+        getXmlString(resp, "foo");
+
+        return new String[] {getXmlString(resp, "status"), getXmlString(resp, "final"),
+                getXmlString(resp, "percentage")};
+    }
+
+    private static String readToString(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int ret;
+        while ((ret = in.read(buf)) != -1) {
+            out.write(buf, 0, ret);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static String getXmlString(String data, String tagname) throws IOException {
+        try {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            XmlPullParser xpp = factory.newPullParser();
+
+            xpp.setInput(new StringReader(data));
+            int eventType = xpp.getEventType();
+            Stack<String> currentTag = new Stack<String>();
+
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                switch (eventType) {
+                    case (XmlPullParser.START_TAG):
+                        if (xpp.getName().equals("rsp") &&
+                                !"ok".equals(xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "stat"))) {
+                            throw new IOException("Request failed");
+                        }
+                        currentTag.push(xpp.getName());
+                        break;
+                    case (XmlPullParser.END_TAG):
+                        currentTag.pop();
+                        break;
+                    case (XmlPullParser.TEXT):
+                        if (currentTag.peek().equals(tagname)) {
+                            return xpp.getText();
+                        }
+                        break;
+                }
+                eventType = xpp.next();
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.cgutman.openwtv.fake;
+
+import com.github.cgutman.openwtv.protocol.ExtendConnection;
+import com.github.cgutman.openwtv.protocol.KeepAliveTransport;
+import com.github.cgutman.openwtv.protocol.RequestFailedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Checks that the app's own client code understands the fake server
+public class FakeExtendServerTest {
+    private FakeExtendServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeExtendServer("secret").start();
+        server.setLineup(ExtendResponses.syntheticLineup(50));
+        server.setBufferingMs(200);
+        server.setSegments(100, 1024, 5);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private ExtendConnection connect(String password) throws IOException {
+        return ExtendConnection.establishConnection(KeepAliveTransport.getInstance(),
+                server.getAddress(), server.getPort(), password);
+    }
+
+    @Test
+    public void logsInAndListsChannels() throws IOException {
+        ExtendConnection connection = connect("secret");
+
+        List<ExtendConnection.ChannelEntry> channels = connection.requestChannelList();
+        assertEquals(50, channels.size());
+        assertEquals(ExtendResponses.syntheticLineup(50).get(7), channels.get(7));
+    }
+
+    @Test
+    public void rejectsWrongPassword() throws IOException {
+        try {
+            connect("wrong");
+            fail("Login with the wrong password succeeded");
+        } catch (RequestFailedException expected) {
+            assertFalse(expected.isSessionRejected());
+        }
+    }
+
+    @Test
+    public void transcodesAndServesPlaylist() throws Exception {
+        ExtendConnection connection = connect("secret");
+        connection.setResolution1280x720();
+        connection.beginTranscode(1003);
+
+        List<FakeExtendServer.Transcode> transcodes = server.getTranscodes();
+        assertEquals(1, transcodes.size());
+        assertEquals(1003, transcodes.get(0).channelId);
+        assertEquals("(new iPad) 4096kbps, 1280x720", transcodes.get(0).settings.get("local_profile"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!connection.requestTranscodeStatus().finishedBuffering) {
+            assertTrue("Transcode never finished buffering", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        while (!connection.isFirstSegmentAvailable(1003)) {
+            assertTrue("No segment became available", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void logsInAgainAfterSessionExpires() throws IOException {
+        ExtendConnection connection = connect("secret");
+        server.expireSessions();
+
+        // The client logs in again by itself and the request goes through
+        assertEquals(50, connection.requestChannelList().size());
+        assertEquals(2, server.getSessionCount());
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.cgutman.openwtv.hls;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Replays traces of segment downloads through the controller the way
+// PlaybackService drives it, switching whenever it asks to
+public class AbrControllerTest {
+    private static final int[] LADDER = {4096, 4096, 4096};
+    private static final long SEGMENT_MS = 2000;
+
+    // One segment download, either at a link speed or taking a fixed time,
+    // and the read-ahead level afterwards
+    private static class Sample {
+        final long linkKbps;
+        final long downloadMs;
+        final long bufferedMs;
+
+        Sample(long linkKbps, long downloadMs, long bufferedMs) {
+            this.linkKbps = linkKbps;
+            this.downloadMs = downloadMs;
+            this.bufferedMs = bufferedMs;
+        }
+    }
+
+    // Each rung streams at its own real rate, whatever the controller expects
+    private static final long[] REAL_KBPS = {1500, 2500, 4000};
+
+    private static List<Sample> steadyLink(int segments, long linkKbps, long bufferedMs) {
+        ArrayList<Sample> trace = new ArrayList<Sample>();
+        for (int i = 0; i < segments; i++) {
+            trace.add(new Sample(linkKbps, 0, bufferedMs));
+        }
+        return trace;
+    }
+
+    // Returns the rung after each segment
+    private static int[] replay(AbrController abr, List<Sample> trace) {
+        int[] rungs = new int[trace.size()];
+        long now = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            Sample sample = trace.get(i);
+            long bytes = REAL_KBPS[abr.getCurrentIndex()] * SEGMENT_MS / 8;
+            long downloadMs = sample.linkKbps > 0 ? bytes * 8 / sample.linkKbps : sample.downloadMs;
+            now += Math.max(downloadMs, SEGMENT_MS);
+
+            abr.onSegmentDownloaded(bytes, downloadMs, SEGMENT_MS);
+            abr.onBufferLevel(sample.bufferedMs);
+
+            int index = abr.chooseIndex(now);
+            if (index != abr.getCurrentIndex()) {
+                abr.onSwitched(index, now);
+            }
+            rungs[i] = abr.getCurrentIndex();
+        }
+        return rungs;
+    }
+
+    @Test
+    public void learnsRealRungRates() {
+        AbrController abr = new AbrController(LADDER, 1, 0);
+        replay(abr, steadyLink(5, 20000, 6000));
+
+        assertEquals(2500, abr.getRungKbps(1));
+        assertEquals(4096, abr.getRungKbps(0));
+    }
+
+    @Test
+    public void climbsOneRungAtATimeOnFastLink() {
+        AbrController abr = new AbrController(LADDER, 0, 0);
+        int[] rungs = replay(abr, steadyLink(60, 20000, 6000));
+
+        // Up switches need 30s apart, so the first can't come before 15 segments
+        assertEquals(0, rungs[13]);
+        for (int i = 1; i < rungs.length; i++) {
+            assertTrue(rungs[i] - rungs[i - 1] <= 1);
+        }
+        assertEquals(2, rungs[rungs.length - 1]);
+    }
+
+    @Test
+    public void dropsQuicklyWhenLinkSlows() {
+        AbrController abr = new AbrController(LADDER, 2, 0);
+        List<Sample> trace = steadyLink(20, 20000, 6000);
+        trace.addAll(steadyLink(10, 2000, 2000));
+
+        int[] rungs = replay(abr, trace);
+        assertEquals(2, rungs[19]);
+
+        // The fast average catches the drop within a few segments, and the
+        // 1500kbps rung is the one that fits
+        assertEquals(0, rungs[23]);
+    }
+
+    @Test
+    public void ignoresSingleFastSegment() {
+        AbrController abr = new AbrController(LADDER, 0, 0);
+        List<Sample> trace = steadyLink(20, 3000, 4000);
+        trace.addAll(steadyLink(1, 100000, 4000));
+        trace.addAll(steadyLink(5, 3000, 4000));
+
+        int[] rungs = replay(abr, trace);
+        for (int rung : rungs) {
+            assertEquals(0, rung);
+        }
+    }
+
+    @Test
+    public void stepsDownWhenStarving() {
+        AbrController abr = new AbrController(LADDER, 2, 0);
+        List<Sample> trace = steadyLink(10, 20000, 6000);
+
+        // Plenty of throughput on average, but this segment took longer than
+        // it plays for and the read-ahead is empty
+        trace.add(new Sample(0, SEGMENT_MS + 500, 0));
+
+        int[] rungs = replay(abr, trace);
+        assertEquals(2, rungs[9]);
+        assertEquals(1, rungs[10]);
+    }
+
+    @Test
+    public void replayIsDeterministic() {
+        List<Sample> trace = steadyLink(30, 20000, 6000);
+        trace.addAll(steadyLink(20, 2500, 1000));
+        trace.addAll(steadyLink(30, 8000, 6000));
+
+        int[] first = replay(new AbrController(LADDER, 1, 0), trace);
+        int[] second = replay(new AbrController(LADDER, 1, 0), trace);
+        for (int i = 0; i < first.length; i++) {
+            assertEquals(first[i], second[i]);
+        }
+    }
+}
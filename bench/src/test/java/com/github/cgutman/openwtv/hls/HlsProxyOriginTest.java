@@ -0,0 +1,124 @@
+package com.github.cgutman.openwtv.hls;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+import com.github.cgutman.openwtv.fake.FakeExtendServer;
+import com.github.cgutman.openwtv.protocol.ExtendConnection;
+import com.github.cgutman.openwtv.protocol.KeepAliveTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The proxy in front of the fake server's live HLS stream, over real sockets
+public class HlsProxyOriginTest {
+    private static final int CHANNEL_ID = 1004;
+    private static final int SEGMENT_BYTES = 32 * 1024;
+    private static final long ORIGIN_LATENCY_MS = 150;
+
+    private FakeExtendServer server;
+    private HlsProxy proxy;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeExtendServer("secret").start();
+        server.setLineup(ExtendResponses.syntheticLineup(10));
+        server.setSegments(200, SEGMENT_BYTES, 10);
+
+        ExtendConnection connection = ExtendConnection.establishConnection(KeepAliveTransport.getInstance(),
+                server.getAddress(), server.getPort(), "secret");
+        connection.beginTranscode(CHANNEL_ID);
+
+        // Enough for a few segments to be in the window
+        Thread.sleep(1000);
+
+        proxy = new HlsProxy(KeepAliveTransport.getInstance(), connection.getPlaybackUrl(CHANNEL_ID),
+                3, HlsProxy.DEFAULT_CACHE_BYTES);
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.stop();
+        server.close();
+    }
+
+    private static byte[] fetch(String url) throws IOException {
+        InputStream in = new URL(url).openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[16384];
+            int ret;
+            while ((ret = in.read(buf)) != -1) {
+                out.write(buf, 0, ret);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // The segment URIs of the proxy's playlist, resolved against it
+    private List<String> fetchSegmentUrls() throws IOException {
+        String playlistUrl = proxy.getLocalUrl();
+        ArrayList<String> urls = new ArrayList<String>();
+        for (String line : new String(fetch(playlistUrl), "UTF-8").split("\n")) {
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                urls.add(new URL(new URL(playlistUrl), line).toString());
+            }
+        }
+        return urls;
+    }
+
+    private static long timeFetch(String url, byte[][] dataOut) throws IOException {
+        long start = System.nanoTime();
+        dataOut[0] = fetch(url);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void servesOriginSegments() throws IOException {
+        List<String> segments = fetchSegmentUrls();
+        assertTrue(segments.size() >= 3);
+
+        for (String url : segments.subList(0, 3)) {
+            byte[] data = fetch(url);
+            assertEquals(SEGMENT_BYTES, data.length);
+
+            // The fake server fills transport stream packets with the sequence number
+            int sequence = Integer.parseInt(url.substring(url.lastIndexOf('/') + 1, url.length() - ".ts".length()));
+            assertEquals(0x47, data[0] & 0xFF);
+            assertEquals((byte) sequence, data[1]);
+        }
+    }
+
+    @Test
+    public void readAheadHidesOriginLatency() throws Exception {
+        server.setLatencyMs(ORIGIN_LATENCY_MS);
+        List<String> segments = fetchSegmentUrls();
+        assertTrue(segments.size() >= 4);
+
+        byte[][] data = new byte[1][];
+        long firstMs = timeFetch(segments.get(0), data);
+
+        // Give the read-ahead time to fetch the next three
+        Thread.sleep(3 * ORIGIN_LATENCY_MS + 300);
+        assertEquals(4, server.getRequestCount("segment"));
+
+        long nextMs = timeFetch(segments.get(1), data);
+        assertEquals(SEGMENT_BYTES, data[0].length);
+        System.out.println("First segment " + firstMs + " ms from the origin, next " + nextMs + " ms from read-ahead");
+
+        assertTrue(firstMs >= ORIGIN_LATENCY_MS);
+        assertTrue(nextMs < ORIGIN_LATENCY_MS);
+    }
+}
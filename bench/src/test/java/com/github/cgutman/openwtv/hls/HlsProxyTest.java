@@ -0,0 +1,225 @@
+package com.github.cgutman.openwtv.hls;
+
+import com.github.cgutman.openwtv.protocol.ExtendTransport;
+import com.github.cgutman.openwtv.protocol.KeepAliveTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class HlsProxyTest {
+    private static final String UPSTREAM_URL = "http://upstream/live.m3u8";
+
+    // Serves whatever playlist the test last set, and a few bytes per segment
+    private static class ScriptedTransport implements ExtendTransport {
+        volatile String playlist;
+
+        @Override
+        public InputStream get(String url) throws IOException {
+            if (url.equals(UPSTREAM_URL)) {
+                return new ByteArrayInputStream(playlist.getBytes("UTF-8"));
+            }
+            if (url.endsWith(".ts")) {
+                return new ByteArrayInputStream(url.getBytes("UTF-8"));
+            }
+            throw new FileNotFoundException(url);
+        }
+    }
+
+    private ScriptedTransport transport;
+    private HlsProxy proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        transport = new ScriptedTransport();
+        proxy = new HlsProxy(transport, UPSTREAM_URL, 0, 1024 * 1024);
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() {
+        proxy.stop();
+    }
+
+    private static String upstream(int mediaSequence, String... lines) {
+        StringBuilder sb = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:2\n");
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+        for (String line : lines) {
+            if (line.startsWith("#")) {
+                sb.append(line).append('\n');
+            }
+            else {
+                sb.append("#EXTINF:2.0,\n").append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private String fetchPlaylist() throws IOException {
+        InputStream in = new URL(proxy.getLocalUrl()).openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int ret;
+            while ((ret = in.read(buf)) != -1) {
+                out.write(buf, 0, ret);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int countOf(String text, String needle) {
+        int count = 0;
+        for (int i = text.indexOf(needle); i >= 0; i = text.indexOf(needle, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void countsDiscontinuitiesLeavingTheWindow() throws IOException {
+        transport.playlist = upstream(10, "a10.ts", "a11.ts", "a12.ts");
+        String playlist = fetchPlaylist();
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:10\n"));
+        assertTrue(playlist.contains("#EXT-X-DISCONTINUITY-SEQUENCE:0\n"));
+        assertFalse(playlist.contains("#EXT-X-DISCONTINUITY\n"));
+
+        // A restarted transcode numbers its segments from 0 again
+        proxy.beginRestart();
+        proxy.finishRestart();
+        transport.playlist = upstream(0, "b0.ts", "b1.ts");
+        playlist = fetchPlaylist();
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:13\n"));
+        assertTrue(playlist.contains("#EXT-X-DISCONTINUITY-SEQUENCE:0\n"));
+        assertTrue(playlist.contains("#EXT-X-DISCONTINUITY\n#EXTINF:2.0,\nseg/13.ts\n"));
+
+        // Once the first new segment slides out, so does its discontinuity
+        transport.playlist = upstream(1, "b1.ts", "b2.ts");
+        playlist = fetchPlaylist();
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:14\n"));
+        assertTrue(playlist.contains("#EXT-X-DISCONTINUITY-SEQUENCE:1\n"));
+        assertFalse(playlist.contains("#EXT-X-DISCONTINUITY\n"));
+    }
+
+    @Test
+    public void keepsUpstreamDiscontinuities() throws IOException {
+        transport.playlist = upstream(0, "#EXT-X-DISCONTINUITY-SEQUENCE:7", "a0.ts",
+                "#EXT-X-DISCONTINUITY", "a1.ts", "a2.ts");
+        String playlist = fetchPlaylist();
+        assertEquals(1, countOf(playlist, "#EXT-X-DISCONTINUITY-SEQUENCE:"));
+        assertTrue(playlist.contains("#EXT-X-DISCONTINUITY-SEQUENCE:0\n"));
+        assertTrue(playlist.contains("#EXT-X-DISCONTINUITY\n#EXTINF:2.0,\nseg/1.ts\n"));
+
+        // Seen again on the next refresh, it's still only written once
+        playlist = fetchPlaylist();
+        assertEquals(1, countOf(playlist, "#EXT-X-DISCONTINUITY\n"));
+
+        transport.playlist = upstream(2, "a2.ts", "a3.ts");
+        playlist = fetchPlaylist();
+        assertTrue(playlist.contains("#EXT-X-DISCONTINUITY-SEQUENCE:1\n"));
+    }
+
+    private static int countThreads(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void stopUnblocksStalledDownload() throws Exception {
+        // Takes the request and never answers it
+        final ServerSocket origin = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        ArrayList<Socket> accepted = new ArrayList<Socket>();
+        try {
+            final HlsProxy stalled = new HlsProxy(KeepAliveTransport.getInstance(),
+                    "http://127.0.0.1:" + origin.getLocalPort() + "/live.m3u8", 0, 1024 * 1024);
+            stalled.start();
+
+            final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+            Thread refresher = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        stalled.refreshPlaylist();
+                    } catch (IOException e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            refresher.start();
+            Socket upstream = origin.accept();
+            accepted.add(upstream);
+
+            // Once the request has been sent, the proxy is blocked on the response
+            BufferedReader request = new BufferedReader(new InputStreamReader(upstream.getInputStream(), "ISO-8859-1"));
+            String line;
+            do {
+                line = request.readLine();
+            } while (line != null && !line.isEmpty());
+
+            // Well inside the transport's read timeout
+            long start = System.nanoTime();
+            stalled.stop();
+            refresher.join(2000);
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+            assertFalse("Download still blocked " + elapsedMs + " ms after stop", refresher.isAlive());
+            assertNotNull(failure.get());
+        } finally {
+            for (Socket socket : accepted) {
+                socket.close();
+            }
+            origin.close();
+        }
+    }
+
+    @Test
+    public void boundsClientThreads() throws Exception {
+        // Connections that never send a request each hold a client thread
+        ArrayList<Socket> idle = new ArrayList<Socket>();
+        try {
+            URL url = new URL(proxy.getLocalUrl());
+            for (int i = 0; i < 20; i++) {
+                idle.add(new Socket(url.getHost(), url.getPort()));
+            }
+            Thread.sleep(200);
+            assertTrue(countThreads("HLS Proxy Client") <= 4);
+
+            proxy.stop();
+            long deadline = System.currentTimeMillis() + 2000;
+            while (countThreads("HLS Proxy Client") > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, countThreads("HLS Proxy Client"));
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.cgutman.openwtv.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncRequestTest {
+    @Test
+    public void runtimeExceptionIsReportedAsFailure() throws InterruptedException {
+        final BlockingQueue<IOException> failures = new ArrayBlockingQueue<IOException>(1);
+
+        AsyncRequest.execute(new Callable<Void>() {
+            @Override
+            public Void call() {
+                throw new IllegalStateException("broken");
+            }
+        }, new AsyncRequest.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {}
+
+            @Override
+            public void onFailure(IOException e) {
+                failures.add(e);
+            }
+        });
+
+        IOException failure = failures.poll(5, TimeUnit.SECONDS);
+        assertTrue(failure.getCause() instanceof IllegalStateException);
+        assertEquals("broken", failure.getCause().getMessage());
+    }
+}
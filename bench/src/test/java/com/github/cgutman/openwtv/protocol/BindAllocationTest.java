@@ -0,0 +1,93 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Checks that scrolling the channel list, which rebinds rows over and over,
+// doesn't allocate once it's warmed up. Rows are bound through ChannelRowText,
+// as ChannelListAdapter.onBindViewHolder() does. Uses HotSpot's per-thread
+// allocation counter, so it only runs there.
+public class BindAllocationTest {
+    private static final int CHANNELS = 5000;
+
+    private com.sun.management.ThreadMXBean threads;
+    private ChannelTable table;
+    private ProgramGuide guide;
+    private long now;
+
+    @Before
+    public void setUp() {
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        table = ChannelTable.fromList(ExtendResponses.syntheticLineup(CHANNELS));
+        now = System.currentTimeMillis();
+        guide = SyntheticGuide.forTable(table, now);
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Binds a row and returns a checksum of what the views would be given
+    private int bind(ChannelRowText text, int row) {
+        text.bind(table, row, guide, now);
+        int sum = text.getNumberChars()[text.getNumberOffset()] + text.getNumberLength();
+        sum += text.getNameChars()[text.getNameOffset()] + text.getNameLength();
+        sum += text.getProgramLength() + text.getProgramChars()[text.getProgramLength() - 1];
+        return sum;
+    }
+
+    // Flings from top to bottom and back, binding every row that comes on screen
+    private int scroll(ChannelRowText text) {
+        int sum = 0;
+        for (int row = 0; row < table.size(); row++) {
+            sum += bind(text, row);
+        }
+        for (int row = table.size() - 1; row >= 0; row--) {
+            sum += bind(text, row);
+        }
+        return sum;
+    }
+
+    @Test
+    public void rowTextMatchesTable() {
+        ChannelRowText text = new ChannelRowText();
+        text.bind(table, 5, guide, now);
+
+        assertEquals(Integer.toString(table.getNumber(5)),
+                new String(text.getNumberChars(), text.getNumberOffset(), text.getNumberLength()));
+        assertEquals(table.getEntry(5).name,
+                new String(text.getNameChars(), text.getNameOffset(), text.getNameLength()));
+        assertEquals("Now: Show 5\nNext: Late Show 5",
+                new String(text.getProgramChars(), 0, text.getProgramLength()));
+
+        text.bind(table, 5, null, now);
+        assertEquals(0, text.getProgramLength());
+    }
+
+    @Test
+    public void rebindingRowsDoesNotAllocate() {
+        ChannelRowText text = new ChannelRowText();
+        for (int i = 0; i < 20; i++) {
+            scroll(text);
+        }
+
+        allocatedBytes();
+        long before = allocatedBytes();
+        int sum = 0;
+        for (int i = 0; i < 10; i++) {
+            sum += scroll(text);
+        }
+        long allocated = allocatedBytes() - before;
+
+        System.out.println("Rebinding " + 10 * 2 * CHANNELS + " rows allocated " + allocated + " bytes");
+        assertTrue(sum != 0);
+        assertEquals(0, allocated);
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelSearchIndexTest {
+    // Checks every query against a scan of the table. A name with two words
+    // matching the query must still come back once, in list order.
+    @Test
+    public void matchesScanInListOrder() {
+        ChannelTable table = ChannelTable.fromList(ExtendResponses.syntheticLineup(500));
+        ChannelSearchIndex index = new ChannelSearchIndex(table);
+        String[] queries = {"a", "h", "hd", "Disc", "e", "1", "12", "499", "9", "x"};
+
+        int[] rows = new int[table.size()];
+        int[] expected = new int[table.size()];
+        for (String query : queries) {
+            int count = 0;
+            for (int row = 0; row < table.size(); row++) {
+                if (matches(table, row, query)) {
+                    expected[count++] = row;
+                }
+            }
+
+            assertEquals(query, count, index.search(query, rows));
+            for (int i = 0; i < count; i++) {
+                assertEquals(query, expected[i], rows[i]);
+            }
+        }
+    }
+
+    // Typing in the search box runs a search per keystroke, so once warmed up
+    // it shouldn't allocate. Uses HotSpot's per-thread allocation counter.
+    @Test
+    public void searchingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        ChannelTable table = ChannelTable.fromList(ExtendResponses.syntheticLineup(5000));
+        ChannelSearchIndex index = new ChannelSearchIndex(table);
+        int[] rows = new int[table.size()];
+        String[] queries = {"a", "ab", "abc", "h", "hd", "di", "disc", "1", "12", "123", ""};
+
+        int total = 0;
+        for (int i = 0; i < 2000; i++) {
+            total += index.search(queries[i % queries.length], rows);
+        }
+
+        threads.getThreadAllocatedBytes(thread);
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000; i++) {
+            total += index.search(queries[i % queries.length], rows);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.println("1000 searches allocated " + allocated + " bytes");
+        assertTrue(total > 0);
+        assertEquals(0, allocated);
+    }
+
+    private static boolean matches(ChannelTable table, int row, String query) {
+        if (Character.isDigit(query.charAt(0))) {
+            return Integer.toString(table.getNumber(row)).startsWith(query);
+        }
+
+        String name = new String(table.getNameChars(), table.getNameOffset(row), table.getNameLength(row));
+        for (String word : name.toLowerCase(Locale.US).split(" ")) {
+            if (word.startsWith(query.toLowerCase(Locale.US))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelTableDiffTest {
+    // Applies the reported changes to a list of IDs, the way a RecyclerView would
+    private static class ListModel implements ChannelTableDiff.Callback {
+        final ArrayList<Integer> ids = new ArrayList<Integer>();
+        final HashSet<Integer> changedIds = new HashSet<Integer>();
+        final ChannelTable newTable;
+        int notifications;
+
+        ListModel(ChannelTable oldTable, ChannelTable newTable) {
+            for (int i = 0; i < oldTable.size(); i++) {
+                ids.add(oldTable.getChannelId(i));
+            }
+            this.newTable = newTable;
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            ids.subList(position, position + count).clear();
+            notifications++;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            // The new rows are the ones at the same positions in the new table
+            for (int i = 0; i < count; i++) {
+                ids.add(position + i, newTable.getChannelId(position + i));
+            }
+            notifications++;
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            for (int i = 0; i < count; i++) {
+                changedIds.add(ids.get(position + i));
+            }
+            notifications++;
+        }
+    }
+
+    private static List<Integer> idsOf(ChannelTable table) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < table.size(); i++) {
+            ids.add(table.getChannelId(i));
+        }
+        return ids;
+    }
+
+    @Test
+    public void reportsRemovalsInsertionsAndChanges() {
+        List<ExtendConnection.ChannelEntry> lineup = ExtendResponses.syntheticLineup(5000);
+        ArrayList<ExtendConnection.ChannelEntry> updated = new ArrayList<ExtendConnection.ChannelEntry>(lineup);
+
+        // Every 100th channel is renamed, a block and a scattering are removed,
+        // and channels are added at the front, middle and end
+        for (int i = 0; i < updated.size(); i += 100) {
+            ExtendConnection.ChannelEntry entry = updated.get(i);
+            updated.set(i, new ExtendConnection.ChannelEntry(entry.channelId, entry.name + " 2", entry.number, entry.type));
+        }
+        updated.subList(2000, 2050).clear();
+        for (int i = updated.size() - 7; i > 0; i -= 997) {
+            updated.remove(i);
+        }
+        updated.add(0, new ExtendConnection.ChannelEntry(1, "New A", 1, 0));
+        updated.add(1000, new ExtendConnection.ChannelEntry(2, "New B", 1500, 0));
+        updated.add(new ExtendConnection.ChannelEntry(3, "New C", 9000, 0));
+
+        ChannelTable oldTable = ChannelTable.fromList(lineup);
+        ChannelTable newTable = ChannelTable.fromList(updated);
+        ListModel model = new ListModel(oldTable, newTable);
+
+        assertTrue(ChannelTableDiff.diff(oldTable, newTable, model));
+        assertEquals(idsOf(newTable), model.ids);
+
+        HashSet<Integer> renamed = new HashSet<Integer>();
+        for (ExtendConnection.ChannelEntry entry : updated) {
+            if (entry.name.endsWith(" 2")) {
+                renamed.add(entry.channelId);
+            }
+        }
+        assertEquals(renamed, model.changedIds);
+    }
+
+    @Test
+    public void identicalTablesReportNothing() {
+        List<ExtendConnection.ChannelEntry> lineup = ExtendResponses.syntheticLineup(5000);
+        ChannelTable oldTable = ChannelTable.fromList(lineup);
+        ListModel model = new ListModel(oldTable, ChannelTable.fromList(lineup));
+
+        assertTrue(ChannelTableDiff.diff(oldTable, model.newTable, model));
+        assertEquals(0, model.notifications);
+    }
+
+    @Test
+    public void reorderingIsNotDiffed() {
+        List<ExtendConnection.ChannelEntry> lineup = ExtendResponses.syntheticLineup(100);
+        ArrayList<ExtendConnection.ChannelEntry> reversed = new ArrayList<ExtendConnection.ChannelEntry>(lineup);
+        Collections.reverse(reversed);
+
+        ChannelTable oldTable = ChannelTable.fromList(lineup);
+        ListModel model = new ListModel(oldTable, ChannelTable.fromList(reversed));
+
+        assertFalse(ChannelTableDiff.diff(oldTable, model.newTable, model));
+        assertEquals(0, model.notifications);
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.junit.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+// Retained heap size of a lineup held as a ChannelTable compared with the
+// LinkedList<ChannelEntry> the app used to keep, as measured by JOL on the
+// JVM running the tests. Android's object layout differs in the details
+// but has the same per-object overheads.
+public class ChannelTableFootprintTest {
+    @Test
+    public void tableIsSmallerThanEntryList() {
+        for (int count : new int[] {100, 1000, 10000}) {
+            List<ExtendConnection.ChannelEntry> lineup = ExtendResponses.syntheticLineup(count);
+
+            GraphLayout list = GraphLayout.parseInstance(new LinkedList<ExtendConnection.ChannelEntry>(lineup));
+            GraphLayout table = GraphLayout.parseInstance(ChannelTable.fromList(lineup));
+
+            System.out.println(count + " channels: LinkedList<ChannelEntry> " + list.totalSize() + " bytes in " +
+                    list.totalCount() + " objects, ChannelTable " + table.totalSize() + " bytes in " +
+                    table.totalCount() + " objects");
+
+            assertTrue(table.totalSize() < list.totalSize());
+
+            // A fixed handful of arrays, however long the lineup
+            assertTrue(table.totalCount() < 20);
+        }
+    }
+}
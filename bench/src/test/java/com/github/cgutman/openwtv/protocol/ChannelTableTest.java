@@ -0,0 +1,60 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelTableTest {
+    private static ExtendConnection.ChannelEntry channel(int id, int number) {
+        return new ExtendConnection.ChannelEntry(id, "Channel " + id, number, 0);
+    }
+
+    @Test
+    public void interleavedGroupBatchesEndUpSorted() {
+        List<ExtendConnection.ChannelEntry> lineup = ExtendResponses.syntheticLineup(500);
+
+        // Two groups, each in its own order, arriving alternately in batches
+        ArrayList<ExtendConnection.ChannelEntry> even = new ArrayList<ExtendConnection.ChannelEntry>();
+        ArrayList<ExtendConnection.ChannelEntry> odd = new ArrayList<ExtendConnection.ChannelEntry>();
+        for (int i = 0; i < lineup.size(); i++) {
+            (i % 2 == 0 ? even : odd).add(lineup.get(i));
+        }
+        Collections.reverse(odd);
+
+        ChannelTable table = new ChannelTable(0);
+        int[] rows = new int[50];
+        for (int i = 0; i < even.size(); i += 50) {
+            table.insertSorted(even.subList(i, i + 50), rows);
+            table.insertSorted(odd.subList(i, i + 50), rows);
+        }
+
+        ChannelTable expected = ChannelTable.fromList(lineup);
+        assertEquals(expected.size(), table.size());
+        for (int row = 0; row < table.size(); row++) {
+            assertTrue("Row " + row + " differs", table.rowEquals(row, expected, row));
+            assertEquals(row, table.findRow(table.getChannelId(row)));
+        }
+    }
+
+    @Test
+    public void reportsInsertedRowsAndSkipsDuplicates() {
+        ChannelTable table = new ChannelTable(0);
+        int[] rows = new int[4];
+        assertEquals(3, table.insertSorted(Arrays.asList(channel(10, 5), channel(20, 7), channel(30, 9)), rows));
+
+        // A tie on number sorts by ID; ID 20 is already present and ID 1 is repeated
+        int count = table.insertSorted(Arrays.asList(channel(1, 7), channel(20, 8), channel(40, 1), channel(1, 7)), rows);
+        assertEquals(2, count);
+        assertArrayEquals(new int[] {0, 2}, Arrays.copyOf(rows, count));
+        assertArrayEquals(new int[] {40, 10, 1, 20, 30}, table.getChannelIds());
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+import com.github.cgutman.openwtv.fake.FakeExtendServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ExtendConnectionTest {
+    private FakeExtendServer server;
+    private ExtendConnection connection;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeExtendServer("secret").start();
+        server.setLineup(ExtendResponses.syntheticLineup(10));
+        connection = ExtendConnection.establishConnection(KeepAliveTransport.getInstance(),
+                server.getAddress(), server.getPort(), "secret");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void transcodeAfterReloginKeepsProfile() throws IOException {
+        connection.setEncoding(EncodingProfile.HD_720);
+        server.expireSessions();
+
+        // Nothing changed as far as the connection knows, so this is skipped
+        connection.setEncoding(EncodingProfile.HD_720);
+        connection.beginTranscode(1002);
+
+        List<FakeExtendServer.Transcode> transcodes = server.getTranscodes();
+        assertEquals(1, transcodes.size());
+        assertEquals("sid2", transcodes.get(0).sessionId);
+        assertEquals(EncodingProfile.HD_720.profileName, transcodes.get(0).settings.get("local_profile"));
+        assertEquals(EncodingProfile.HD_720.profileName, transcodes.get(0).settings.get("remote_profile"));
+        assertEquals(Integer.toString(EncodingProfile.HD_720.bitrateKbps),
+                transcodes.get(0).settings.get("local_bitrate"));
+        assertEquals(Integer.toString(EncodingProfile.HD_720.bitrateKbps),
+                transcodes.get(0).settings.get("remote_bitrate"));
+    }
+
+    @Test
+    public void reloginResendsEachSettingOnce() throws IOException {
+        connection.setEncoding(EncodingProfile.HD_720);
+        assertEquals(4, server.getRequestCount("setting.set"));
+
+        server.expireSessions();
+        connection.beginTranscode(1002);
+        connection.setEncoding(EncodingProfile.HD_720);
+
+        assertEquals(8, server.getRequestCount("setting.set"));
+    }
+
+    // Every group fetch gets the session error at once, with settings to
+    // restore, while the group fetches hold all of the request threads
+    @Test(timeout = 20000)
+    public void reloginDuringGroupFetchesCompletes() throws IOException {
+        List<ExtendConnection.ChannelEntry> channels = ExtendResponses.syntheticLineup(60);
+        for (int group = 0; group < 6; group++) {
+            server.addGroup(group + 1, "Group " + group, channels.subList(group * 10, group * 10 + 10));
+        }
+        connection.setEncoding(EncodingProfile.HD_720);
+
+        server.setLatencyMs(100);
+        server.expireSessionsOn("channel.list");
+
+        assertEquals(60, connection.requestChannelList().size());
+        assertEquals(2, server.getSessionCount());
+        assertEquals(8, server.getRequestCount("setting.set"));
+    }
+
+    // The listener runs on the group fetch threads, and anything it fans out
+    // from there must not wait for those same threads
+    @Test(timeout = 20000)
+    public void settingsFromGroupFetchesComplete() throws IOException {
+        List<ExtendConnection.ChannelEntry> channels = ExtendResponses.syntheticLineup(60);
+        for (int group = 0; group < 6; group++) {
+            server.addGroup(group + 1, "Group " + group, channels.subList(group * 10, group * 10 + 10));
+        }
+        server.setLatencyMs(50);
+
+        connection.requestChannelList(new ExtendConnection.ChannelListListener() {
+            @Override
+            public void onChannelsParsed(List<ExtendConnection.ChannelEntry> batch) {
+                int channelId = batch.get(0).channelId;
+                HashMap<String, String> settings = new HashMap<String, String>();
+                for (int i = 0; i < 4; i++) {
+                    settings.put("setting" + i, Integer.toString(channelId));
+                }
+                try {
+                    connection.applySettings(settings);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        assertEquals(24, server.getRequestCount("setting.set"));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int ret;
+            while ((ret = in.read(buf)) != -1) {
+                out.write(buf, 0, ret);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void logoAfterReloginIsTheImage() throws IOException {
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 1, 2, 3};
+        server.setLogo(1002, png);
+        server.expireSessions();
+
+        assertArrayEquals(png, readAll(connection.openChannelLogo(1002)));
+        assertEquals(2, server.getSessionCount());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void missingLogoIsNotFound() throws IOException {
+        connection.openChannelLogo(1003);
+    }
+}
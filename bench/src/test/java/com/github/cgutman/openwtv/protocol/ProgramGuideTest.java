@@ -0,0 +1,170 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.CannedTransport;
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramGuideTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+
+    // Whole seconds, as the server sends them
+    private static final long T0 = 1700000000000L;
+
+    private static ExtendConnection.ProgramEntry program(int channelId, long start, long end, String title) {
+        return new ExtendConnection.ProgramEntry(channelId, T0 + start, T0 + end, title);
+    }
+
+    // Answers program.list with whatever programs are set and records the
+    // window of each request
+    private static class GuideTransport implements ExtendTransport {
+        private final CannedTransport login = CannedTransport.withLogin();
+        final ArrayList<long[]> windows = new ArrayList<long[]>();
+        volatile List<ExtendConnection.ProgramEntry> programs = new ArrayList<ExtendConnection.ProgramEntry>();
+
+        @Override
+        public InputStream get(String url) throws IOException {
+            if (!url.contains("method=program.list")) {
+                return login.get(url);
+            }
+
+            long start = Long.parseLong(param(url, "start")) * 1000;
+            long end = Long.parseLong(param(url, "end")) * 1000;
+            synchronized (windows) {
+                windows.add(new long[] {start - T0, end - T0});
+            }
+            return new ByteArrayInputStream(ExtendResponses.programList(programs).getBytes("UTF-8"));
+        }
+
+        private static String param(String url, String name) {
+            int start = url.indexOf("&" + name + "=") + name.length() + 2;
+            int end = url.indexOf('&', start);
+            return end < 0 ? url.substring(start) : url.substring(start, end);
+        }
+    }
+
+    @Test
+    public void mergeReplacesOverlappedPrograms() {
+        ProgramGuide guide = new ProgramGuide();
+        guide.merge(T0, T0 + 6 * HOUR, Arrays.asList(
+                program(1, 0, HOUR, "A"),
+                program(1, HOUR, 2 * HOUR, "B"),
+                program(1, 2 * HOUR, 3 * HOUR, "C"),
+                program(2, 30 * MINUTE, 90 * MINUTE, "X"),
+                program(2, 3 * HOUR, 4 * HOUR, "Y")), T0);
+
+        // D sticks out of the window and replaces C as well as B. Channel 2
+        // isn't mentioned, so it has nothing in the window any more.
+        guide.merge(T0 + HOUR, T0 + 2 * HOUR, Arrays.asList(
+                program(1, 90 * MINUTE, 150 * MINUTE, "D")), T0);
+
+        assertEquals("A", guide.getNowTitle(1, T0 + 30 * MINUTE));
+        assertEquals("D", guide.getNextTitle(1, T0 + 30 * MINUTE));
+        assertNull(guide.getNowTitle(1, T0 + 75 * MINUTE));
+        assertEquals("D", guide.getNowTitle(1, T0 + 2 * HOUR));
+        assertNull(guide.getNowTitle(1, T0 + 160 * MINUTE));
+        assertNull(guide.getNextTitle(1, T0 + 2 * HOUR));
+
+        assertNull(guide.getNowTitle(2, T0 + 45 * MINUTE));
+        assertEquals("Y", guide.getNextTitle(2, T0 + 45 * MINUTE));
+        assertEquals("Y", guide.getNowTitle(2, T0 + 3 * HOUR));
+    }
+
+    @Test
+    public void mergeDropsEndedPrograms() {
+        ProgramGuide guide = new ProgramGuide();
+        guide.merge(T0, T0 + 6 * HOUR, Arrays.asList(
+                program(1, 0, HOUR, "A"),
+                program(1, HOUR, 2 * HOUR, "B")), T0);
+        assertEquals("A", guide.getNowTitle(1, T0 + 30 * MINUTE));
+
+        // Nothing new, but an hour has passed and A is over
+        List<ExtendConnection.ProgramEntry> none = new ArrayList<ExtendConnection.ProgramEntry>();
+        guide.merge(T0 + 6 * HOUR, T0 + 7 * HOUR, none, T0 + HOUR);
+
+        assertNull(guide.getNowTitle(1, T0 + 30 * MINUTE));
+        assertEquals("B", guide.getNextTitle(1, T0 + 30 * MINUTE));
+        assertEquals("B", guide.getNowTitle(1, T0 + HOUR));
+    }
+
+    @Test
+    public void nowAndNextAtProgramBoundaries() {
+        ProgramGuide guide = new ProgramGuide();
+        guide.merge(T0, T0 + 6 * HOUR, Arrays.asList(
+                program(1, 0, HOUR, "A"),
+                program(1, HOUR, 2 * HOUR, "B"),
+                program(1, 150 * MINUTE, 3 * HOUR, "C")), T0);
+
+        // A program is on from its start up to, but not including, its end
+        assertEquals("A", guide.getNowTitle(1, T0));
+        assertEquals("B", guide.getNextTitle(1, T0));
+        assertEquals("A", guide.getNowTitle(1, T0 + HOUR - 1));
+        assertEquals("B", guide.getNowTitle(1, T0 + HOUR));
+        assertEquals("C", guide.getNextTitle(1, T0 + HOUR));
+
+        // Nothing is on in the gap between B and C
+        assertNull(guide.getNowTitle(1, T0 + 2 * HOUR));
+        assertEquals("C", guide.getNextTitle(1, T0 + 2 * HOUR));
+        assertNull(guide.getNowTitle(1, T0 + 3 * HOUR));
+        assertNull(guide.getNextTitle(1, T0 + 3 * HOUR));
+
+        assertNull(guide.getNowTitle(1, T0 - 1));
+        assertEquals("A", guide.getNextTitle(1, T0 - 1));
+        assertNull(guide.getNowTitle(2, T0));
+    }
+
+    @Test
+    public void refreshSkipsGapsUnderHalfAnHour() throws IOException {
+        GuideTransport transport = new GuideTransport();
+        ExtendConnection connection = ExtendConnection.establishConnection(transport,
+                InetAddress.getLoopbackAddress(), 8089, "test");
+        ProgramGuide guide = new ProgramGuide();
+
+        assertTrue(guide.refresh(connection, T0));
+        assertEquals(1, transport.windows.size());
+        assertEquals(0, transport.windows.get(0)[0]);
+        assertEquals(6 * HOUR, transport.windows.get(0)[1]);
+
+        assertFalse(guide.refresh(connection, T0 + 10 * MINUTE));
+        assertFalse(guide.refresh(connection, T0 + 29 * MINUTE));
+        assertEquals(1, transport.windows.size());
+    }
+
+    @Test
+    public void refreshPicksUpChangesInTheNextHours() throws IOException {
+        GuideTransport transport = new GuideTransport();
+        ExtendConnection connection = ExtendConnection.establishConnection(transport,
+                InetAddress.getLoopbackAddress(), 8089, "test");
+        ProgramGuide guide = new ProgramGuide();
+
+        transport.programs = Arrays.asList(program(1, 0, 2 * HOUR, "A"));
+        guide.refresh(connection, T0);
+        assertEquals("A", guide.getNowTitle(1, T0 + HOUR));
+
+        // The schedule changed inside the window we already have
+        transport.programs = Arrays.asList(program(1, 30 * MINUTE, 2 * HOUR, "B"));
+        assertTrue(guide.refresh(connection, T0 + 30 * MINUTE));
+
+        // The new end of the window, and then the next two hours again
+        assertEquals(3, transport.windows.size());
+        assertEquals(6 * HOUR, transport.windows.get(1)[0]);
+        assertEquals(6 * HOUR + 30 * MINUTE, transport.windows.get(1)[1]);
+        assertEquals(30 * MINUTE, transport.windows.get(2)[0]);
+        assertEquals(150 * MINUTE, transport.windows.get(2)[1]);
+        assertEquals("B", guide.getNowTitle(1, T0 + HOUR));
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.cgutman.openwtv.protocol;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerDiscoveryTest {
+    private final ArrayList<ServerSocket> listeners = new ArrayList<ServerSocket>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (ServerSocket listener : listeners) {
+            listener.close();
+        }
+    }
+
+    private InetSocketAddress openPort() throws IOException {
+        ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        listeners.add(listener);
+        return new InetSocketAddress(listener.getInetAddress(), listener.getLocalPort());
+    }
+
+    // A port that was just free, so nothing is listening on it
+    private static InetSocketAddress closedPort() throws IOException {
+        ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        InetSocketAddress address = new InetSocketAddress(listener.getInetAddress(), listener.getLocalPort());
+        listener.close();
+        return address;
+    }
+
+    private static long deadlineIn(long ms) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void findsOpenPortsInOrder() throws IOException {
+        InetSocketAddress first = openPort();
+        InetSocketAddress second = openPort();
+        InetSocketAddress third = openPort();
+        List<InetSocketAddress> candidates = Arrays.asList(
+                closedPort(), first, closedPort(), second, closedPort(), third, closedPort());
+
+        ServerDiscovery.ScanResult result = ServerDiscovery.scan(candidates, deadlineIn(5000));
+        assertEquals(Arrays.asList(first, second, third), result.open);
+        assertEquals(0, result.unfinished);
+    }
+
+    @Test
+    public void findsOpenPortsBeyondOnePipelineFull() throws IOException {
+        // More candidates than are probed at once
+        InetSocketAddress open = openPort();
+        ArrayList<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>();
+        InetSocketAddress closed = closedPort();
+        for (int i = 0; i < 300; i++) {
+            candidates.add(closed);
+        }
+        candidates.add(open);
+
+        ServerDiscovery.ScanResult result = ServerDiscovery.scan(candidates, deadlineIn(5000));
+        assertEquals(Arrays.asList(open), result.open);
+        assertEquals(0, result.unfinished);
+    }
+
+    @Test
+    public void reportsWhatTheDeadlineCutOff() throws IOException {
+        ArrayList<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < 300; i++) {
+            candidates.add(openPort());
+        }
+
+        ServerDiscovery.ScanResult result = ServerDiscovery.scan(candidates, System.nanoTime());
+        assertTrue(result.unfinished > 0);
+        assertEquals(candidates.size(), result.open.size() + result.unfinished);
+    }
+
+    @Test
+    public void ownSlash24ComesFirst() throws IOException {
+        // 10.0.1.5/22
+        int self = (10 << 24) | (1 << 8) | 5;
+        ArrayList<InetAddress> nearby = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> rest = new ArrayList<InetAddress>();
+        ServerDiscovery.addSubnetHosts(self, 22, nearby, rest);
+
+        assertEquals(255, nearby.size());
+        assertEquals(InetAddress.getByName("10.0.1.0"), nearby.get(0));
+        assertEquals(InetAddress.getByName("10.0.1.255"), nearby.get(254));
+        assertFalse(nearby.contains(InetAddress.getByName("10.0.1.5")));
+
+        assertEquals(1022 - 256, rest.size());
+        assertEquals(InetAddress.getByName("10.0.0.1"), rest.get(0));
+        assertEquals(InetAddress.getByName("10.0.3.254"), rest.get(rest.size() - 1));
+    }
+}
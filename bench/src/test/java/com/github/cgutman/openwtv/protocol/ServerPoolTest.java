@@ -0,0 +1,116 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.FakeExtendServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ServerPoolTest {
+    private final ServerPool pool = ServerPool.getInstance();
+    private ServerPool.Server origin;
+    private ServerPool.Server other;
+
+    @Before
+    public void setUp() {
+        origin = pool.add("192.0.2.1", 8089, "secret");
+        other = pool.add("192.0.2.2", 8089, "secret");
+
+        pool.setLineup(origin, Arrays.asList(
+                new ExtendConnection.ChannelEntry(11, "ABC", 7, 0),
+                new ExtendConnection.ChannelEntry(12, "CBS", 2, 0),
+                new ExtendConnection.ChannelEntry(13, "PBS", 9, 0),
+                new ExtendConnection.ChannelEntry(14, "PBS Kids", 9, 0)));
+    }
+
+    @After
+    public void tearDown() {
+        pool.remove(origin.address, origin.port);
+        pool.remove(other.address, other.port);
+    }
+
+    @Test
+    public void mapsChannelByNumber() {
+        pool.setLineup(other, Arrays.asList(
+                new ExtendConnection.ChannelEntry(502, "CBS HD", 2, 0),
+                new ExtendConnection.ChannelEntry(507, "ABC HD", 7, 0)));
+
+        assertEquals(507, pool.findChannelId(origin, 11, other));
+        assertEquals(502, pool.findChannelId(origin, 12, other));
+        assertEquals(-1, pool.findChannelId(origin, 13, other));
+        assertEquals(11, pool.findChannelId(origin, 11, origin));
+    }
+
+    @Test
+    public void usesNameWhenNumberIsShared() {
+        pool.setLineup(other, Arrays.asList(
+                new ExtendConnection.ChannelEntry(609, "pbs kids", 9, 0),
+                new ExtendConnection.ChannelEntry(610, "PBS", 9, 0)));
+
+        assertEquals(610, pool.findChannelId(origin, 13, other));
+        assertEquals(609, pool.findChannelId(origin, 14, other));
+    }
+
+    @Test
+    public void skipsServersWithoutLineup() {
+        List<ServerPool.Candidate> candidates = pool.selectServers(origin, 11);
+        assertEquals(1, candidates.size());
+        assertEquals(origin, candidates.get(0).server);
+        assertEquals(11, candidates.get(0).channelId);
+    }
+
+    @Test
+    public void candidatesCarryTheirOwnChannelId() {
+        pool.setLineup(other, Arrays.asList(new ExtendConnection.ChannelEntry(507, "ABC HD", 7, 0)));
+
+        // Busy servers go last
+        pool.onTranscodeStarted(origin);
+        try {
+            List<ServerPool.Candidate> candidates = pool.selectServers(origin, 11);
+            assertEquals(2, candidates.size());
+            assertEquals(other, candidates.get(0).server);
+            assertEquals(507, candidates.get(0).channelId);
+            assertEquals(origin, candidates.get(1).server);
+            assertEquals(11, candidates.get(1).channelId);
+        } finally {
+            pool.onTranscodeStopped(origin);
+        }
+    }
+
+    @Test
+    public void passwordChangeKeepsLoad() {
+        pool.setLineup(other, Arrays.asList(new ExtendConnection.ChannelEntry(507, "ABC HD", 7, 0)));
+        pool.onTranscodeStarted(origin);
+
+        assertSame(origin, pool.add(origin.address, origin.port, "changed"));
+        assertEquals("changed", origin.getPassword());
+        assertEquals(other, pool.selectServers(origin, 11).get(0).server);
+
+        // The release lands on the entry that counted the start
+        pool.onTranscodeStopped(origin);
+        assertEquals(origin, pool.selectServers(origin, 11).get(0).server);
+    }
+
+    @Test
+    public void probeLeavesNoSession() throws IOException {
+        FakeExtendServer server = new FakeExtendServer("secret").start();
+        try {
+            ServerPool.Server entry = new ServerPool.Server(server.getAddress().getHostAddress(),
+                    server.getPort(), "secret");
+            for (int i = 0; i < 3; i++) {
+                ServerPool.probe(entry);
+            }
+
+            assertEquals(0, server.getSessionCount());
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+import com.github.cgutman.openwtv.fake.FakeExtendServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionManagerTest {
+    private static final long LATENCY_MS = 300;
+
+    private FakeExtendServer slow;
+    private FakeExtendServer fast;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        slow = new FakeExtendServer("secret").start();
+        slow.setLineup(ExtendResponses.syntheticLineup(10));
+        slow.setLatencyMs(LATENCY_MS);
+        fast = new FakeExtendServer("secret").start();
+        fast.setLineup(ExtendResponses.syntheticLineup(10));
+        executor = Executors.newCachedThreadPool();
+        SessionManager.getInstance().setTransport(KeepAliveTransport.getInstance());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        slow.close();
+        fast.close();
+    }
+
+    private Future<ExtendConnection> connectLater(final FakeExtendServer server) {
+        return executor.submit(new Callable<ExtendConnection>() {
+            @Override
+            public ExtendConnection call() throws IOException {
+                return SessionManager.getInstance().getConnection(server.getAddress(), server.getPort(), "secret");
+            }
+        });
+    }
+
+    @Test
+    public void concurrentCallersShareOneLogin() throws Exception {
+        List<Future<ExtendConnection>> results = new ArrayList<Future<ExtendConnection>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(connectLater(slow));
+        }
+
+        ExtendConnection first = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<ExtendConnection> result : results) {
+            assertSame(first, result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, slow.getSessionCount());
+    }
+
+    @Test
+    public void slowLoginDoesNotBlockOtherServers() throws Exception {
+        Future<ExtendConnection> slowLogin = connectLater(slow);
+        Thread.sleep(LATENCY_MS / 3);
+
+        long start = System.nanoTime();
+        connectLater(fast).get(10, TimeUnit.SECONDS);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Waited " + elapsedMs + " ms behind another server's login", elapsedMs < LATENCY_MS);
+        slowLogin.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void expiredSessionIsRecognizedByCode() throws Exception {
+        ExtendConnection connection = connectLater(fast).get(10, TimeUnit.SECONDS);
+        fast.expireSessions();
+
+        // Logs in again by itself rather than failing
+        assertEquals(10, connection.requestChannelList().size());
+        assertEquals(2, fast.getSessionCount());
+    }
+}
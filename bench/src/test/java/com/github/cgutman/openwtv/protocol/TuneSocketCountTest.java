@@ -0,0 +1,101 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+import com.github.cgutman.openwtv.fake.FakeExtendServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Counts the TCP connections one tune opens: login, encoding settings, the
+// transcode, status polls until it has buffered, and the first playlist fetch
+public class TuneSocketCountTest {
+    // The settings are sent concurrently, so they may need a socket each
+    private static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    // How every request was made before the keep-alive transport: a new
+    // connection, read to the end and then disconnected
+    private static class DisconnectingTransport implements ExtendTransport {
+        @Override
+        public InputStream get(String url) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                InputStream in = conn.getInputStream();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int ret;
+                while ((ret = in.read(buf)) != -1) {
+                    body.write(buf, 0, ret);
+                }
+                return new ByteArrayInputStream(body.toByteArray());
+            } finally {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private FakeExtendServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeExtendServer("secret").start();
+        server.setLineup(ExtendResponses.syntheticLineup(10));
+        server.setBufferingMs(300);
+        server.setSegments(100, 1024, 5);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private int tune(ExtendTransport transport) throws Exception {
+        ExtendConnection connection = ExtendConnection.establishConnection(transport,
+                server.getAddress(), server.getPort(), "secret");
+        connection.setEncoding(EncodingProfile.HD_720);
+        connection.beginTranscode(1003);
+
+        while (!connection.requestTranscodeStatus().finishedBuffering) {
+            Thread.sleep(50);
+        }
+        while (!connection.isFirstSegmentAvailable(1003)) {
+            Thread.sleep(50);
+        }
+
+        int requests = 0;
+        for (String method : new String[] {"session.initiate", "session.login", "setting.set",
+                "channel.transcode.initiate", "channel.transcode.status", "playlist"}) {
+            requests += server.getRequestCount(method);
+        }
+        return requests;
+    }
+
+    @Test
+    public void keepAliveReusesSockets() throws Exception {
+        int requests = tune(KeepAliveTransport.getInstance());
+        int sockets = server.getConnectionCount();
+        System.out.println("Keep-alive tune: " + requests + " requests over " + sockets + " sockets");
+
+        assertTrue(sockets <= MAX_CONCURRENT_REQUESTS);
+        assertTrue(sockets < requests);
+    }
+
+    @Test
+    public void disconnectingOpensOneSocketPerRequest() throws Exception {
+        int requests = tune(new DisconnectingTransport());
+        int sockets = server.getConnectionCount();
+        System.out.println("Disconnecting tune: " + requests + " requests over " + sockets + " sockets");
+
+        assertEquals(requests, sockets);
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.cgutman.openwtv.protocol;
+
+import com.github.cgutman.openwtv.fake.ExtendResponses;
+import com.github.cgutman.openwtv.fake.FakeExtendServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+// Time from asking for a channel until its first segment can be played,
+// against the fake server with a LAN-like round trip and a transcode that
+// finishes its first segment half a second after it starts. This follows
+// the steps PlaybackService takes for each kind of zap:
+//
+//   cold      a new player that logs in again, as before zapping in the player
+//   session   the session is kept, but the transcode starts from zero
+//   warm      the channel was prewarmed on a standby session a while ago
+public class ZapTimingTest {
+    private static final long LATENCY_MS = 20;
+    private static final long SEGMENT_MS = 500;
+    private static final long PREWARM_LEAD_MS = 2000;
+
+    private FakeExtendServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeExtendServer("secret").start();
+        server.setLineup(ExtendResponses.syntheticLineup(10));
+        server.setLatencyMs(LATENCY_MS);
+        server.setBufferingMs(3 * SEGMENT_MS);
+        server.setSegments(SEGMENT_MS, 16 * 1024, 5);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private ExtendConnection login() throws IOException {
+        return ExtendConnection.establishConnection(KeepAliveTransport.getInstance(),
+                server.getAddress(), server.getPort(), "secret");
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // PlaybackService.waitForTranscode() with START_ON_FIRST_SEGMENT
+    private static void waitForTranscode(ExtendConnection connection, int channelId) throws Exception {
+        TranscodePollScheduler scheduler = new TranscodePollScheduler();
+        long delay = scheduler.getInitialDelay();
+        for (;;) {
+            Thread.sleep(delay);
+
+            ExtendConnection.TranscodeStatus status = connection.requestTranscodeStatus();
+            if (status.finishedBuffering ||
+                    (status.percentage > 0 && connection.isFirstSegmentAvailable(channelId))) {
+                return;
+            }
+
+            delay = scheduler.onStatus(now(), status.percentage);
+        }
+    }
+
+    private long coldZap(int channelId) throws Exception {
+        long start = now();
+        ExtendConnection connection = login();
+        connection.setEncoding(EncodingProfile.HD_720);
+        connection.beginTranscode(channelId);
+        waitForTranscode(connection, channelId);
+        return now() - start;
+    }
+
+    private long sessionZap(ExtendConnection connection, int channelId) throws Exception {
+        long start = now();
+        connection.setEncoding(EncodingProfile.HD_720);
+        connection.beginTranscode(channelId);
+        waitForTranscode(connection, channelId);
+        return now() - start;
+    }
+
+    private long warmZap(int channelId) throws Exception {
+        ExtendConnection standby = login();
+        standby.setEncoding(EncodingProfile.HD_720);
+        standby.beginTranscode(channelId);
+
+        // Watching the current channel while the next one warms up
+        Thread.sleep(PREWARM_LEAD_MS);
+
+        long start = now();
+        waitForTranscode(standby, channelId);
+        return now() - start;
+    }
+
+    @Test
+    public void prewarmedZapIsFastest() throws Exception {
+        // Gets class loading and the connection pool going
+        coldZap(1000);
+
+        long cold = coldZap(1001);
+        ExtendConnection kept = login();
+        kept.setEncoding(EncodingProfile.HD_720);
+        long session = sessionZap(kept, 1002);
+        long warm = warmZap(1003);
+
+        System.out.println("Zap to first segment: cold " + cold + " ms, kept session " + session +
+                " ms, prewarmed " + warm + " ms");
+
+        assertTrue(session < cold);
+        assertTrue(warm * 2 < cold);
+    }
+}
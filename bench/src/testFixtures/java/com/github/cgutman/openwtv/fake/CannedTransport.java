@@ -0,0 +1,52 @@
+package com.github.cgutman.openwtv.fake;
+
+import com.github.cgutman.openwtv.protocol.ExtendTransport;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Answers service API requests with recorded responses from memory, keyed by
+// the method parameter, so parsing can be measured without any network I/O
+public class CannedTransport implements ExtendTransport {
+    private final ConcurrentHashMap<String, byte[]> responses = new ConcurrentHashMap<String, byte[]>();
+
+    public CannedTransport put(String method, String response) {
+        try {
+            responses.put(method, response.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    // Answers the login requests so ExtendConnection.establishConnection() works
+    public static CannedTransport withLogin() {
+        return new CannedTransport()
+                .put("session.initiate", ExtendResponses.sessionInitiate("canned-sid", "canned-salt"))
+                .put("session.login", ExtendResponses.ok());
+    }
+
+    @Override
+    public InputStream get(String url) throws IOException {
+        byte[] response = responses.get(getMethod(url));
+        if (response == null) {
+            throw new FileNotFoundException(url);
+        }
+        return new ByteArrayInputStream(response);
+    }
+
+    static String getMethod(String url) {
+        int start = url.indexOf("method=");
+        if (start < 0) {
+            return "";
+        }
+        start += "method=".length();
+
+        int end = url.indexOf('&', start);
+        return end < 0 ? url.substring(start) : url.substring(start, end);
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.cgutman.openwtv.fake;
+
+import com.github.cgutman.openwtv.protocol.ExtendConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Builds service API responses in the shapes the app's parsers read, for the
+// fake server and for benchmarks that replay recorded responses
+public class ExtendResponses {
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+
+    private ExtendResponses() {}
+
+    public static String ok() {
+        return HEADER + "<rsp stat=\"ok\"></rsp>";
+    }
+
+    public static String fail(String code, String message) {
+        return HEADER + "<rsp stat=\"fail\"><err code=\"" + code + "\" msg=\"" + escape(message) + "\"/></rsp>";
+    }
+
+    public static String sessionInitiate(String sid, String salt) {
+        return HEADER + "<rsp stat=\"ok\"><sid>" + sid + "</sid><salt>" + salt + "</salt></rsp>";
+    }
+
+    public static String channelGroups(List<ExtendConnection.ChannelGroup> groups) {
+        StringBuilder sb = new StringBuilder(HEADER);
+        sb.append("<rsp stat=\"ok\"><groups>");
+        for (ExtendConnection.ChannelGroup group : groups) {
+            sb.append("<group><id>").append(group.groupId).append("</id><name>")
+                    .append(escape(group.name)).append("</name></group>");
+        }
+        sb.append("</groups></rsp>");
+        return sb.toString();
+    }
+
+    public static String channelList(List<ExtendConnection.ChannelEntry> channels) {
+        StringBuilder sb = new StringBuilder(HEADER);
+        sb.append("<rsp stat=\"ok\"><channels>\n");
+        for (ExtendConnection.ChannelEntry channel : channels) {
+            sb.append("  <channel>\n")
+                    .append("    <id>").append(channel.channelId).append("</id>\n")
+                    .append("    <name>").append(escape(channel.name)).append("</name>\n")
+                    .append("    <number>").append(channel.number).append("</number>\n")
+                    .append("    <type>").append(channel.type).append("</type>\n")
+                    .append("  </channel>\n");
+        }
+        sb.append("</channels></rsp>");
+        return sb.toString();
+    }
+
+    public static String programList(List<ExtendConnection.ProgramEntry> programs) {
+        StringBuilder sb = new StringBuilder(HEADER);
+        sb.append("<rsp stat=\"ok\"><programs>\n");
+        for (ExtendConnection.ProgramEntry program : programs) {
+            sb.append("  <program><channel_id>").append(program.channelId).append("</channel_id>")
+                    .append("<start>").append(program.startTime / 1000).append("</start>")
+                    .append("<end>").append(program.endTime / 1000).append("</end>")
+                    .append("<title>").append(escape(program.title)).append("</title></program>\n");
+        }
+        sb.append("</programs></rsp>");
+        return sb.toString();
+    }
+
+    public static String transcodeStatus(String status, boolean finished, int percentage) {
+        return HEADER + "<rsp stat=\"ok\"><transcode><status>" + status + "</status><final>" + finished +
+                "</final><percentage>" + percentage + "</percentage></transcode></rsp>";
+    }
+
+    // A lineup of the given size with realistic names, numbered from 2 up
+    public static List<ExtendConnection.ChannelEntry> syntheticLineup(int count) {
+        String[] networks = {"ABC", "CBS", "NBC", "FOX", "PBS", "ESPN", "CNN", "HGTV", "Discovery", "History"};
+        String[] suffixes = {"", " HD", " East", " West", " Plus"};
+
+        ArrayList<ExtendConnection.ChannelEntry> lineup = new ArrayList<ExtendConnection.ChannelEntry>(count);
+        for (int i = 0; i < count; i++) {
+            String name = networks[i % networks.length] + suffixes[(i / networks.length) % suffixes.length];
+            lineup.add(new ExtendConnection.ChannelEntry(1000 + i, name, 2 + i, i % 3));
+        }
+        return lineup;
+    }
+
+    private static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
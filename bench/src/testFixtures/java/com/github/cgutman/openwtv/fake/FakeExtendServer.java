@@ -0,0 +1,607 @@
+package com.github.cgutman.openwtv.fake;
+
+import com.github.cgutman.openwtv.protocol.ExtendConnection;
+import com.github.cgutman.openwtv.protocol.RequestFailedException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An Extend server on loopback for tests and benchmarks that need the real
+// HTTP path. It speaks HTTP/1.1 with keep-alive and answers the service API
+// in the shapes the app's parsers read:
+//
+//   session.initiate, session.login
+//   channel.group.list, channel.list
+//   setting.set
+//   channel.transcode.initiate, channel.transcode.status, channel.transcode.stop
+//   program.list (always empty)
+//   channel.icon (the image set with setLogo(), or a 404)
+//
+// A started transcode serves a live HLS playlist at the app's playback URL
+// whose window of synthetic segments slides forward in real time.
+//
+// Every response can be delayed by a fixed latency and throttled to a
+// bandwidth, and the server counts the sockets and requests it gets so tests
+// can check how the client uses the network.
+public class FakeExtendServer implements Closeable {
+    // The code and message sent for a request with a session we don't know
+    public static final String SESSION_ERROR_CODE = RequestFailedException.INVALID_SESSION_CODE;
+    public static final String SESSION_ERROR_MESSAGE = "Invalid session";
+
+    private static final String PLAYLIST_PATH = "/service/services/channelasync.m3u8";
+    private static final String SEGMENT_PREFIX = "/service/services/segment/";
+    private static final String SERVICE_PATH = "/services/service";
+
+    // A record of one transcode the server started
+    public static class Transcode {
+        public final String sessionId;
+        public final int channelId;
+        // The settings the session had applied when the transcode started
+        public final Map<String, String> settings;
+        final long startNanos;
+        volatile boolean stopped;
+
+        Transcode(String sessionId, int channelId, Map<String, String> settings) {
+            this.sessionId = sessionId;
+            this.channelId = channelId;
+            this.settings = settings;
+            this.startNanos = System.nanoTime();
+        }
+
+        public boolean isStopped() {
+            return stopped;
+        }
+    }
+
+    private static class Session {
+        final String salt;
+        boolean loggedIn;
+        final LinkedHashMap<String, String> settings = new LinkedHashMap<String, String>();
+        Transcode transcode;
+
+        Session(String salt) {
+            this.salt = salt;
+        }
+    }
+
+    private final String password;
+
+    private volatile long latencyMs;
+    private volatile long bytesPerSecond;
+    private volatile long bufferingMs = 1000;
+    private volatile long segmentDurationMs = 1000;
+    private volatile int segmentBytes = 64 * 1024;
+    private volatile int windowSegments = 5;
+    private volatile boolean rejectTranscodes;
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    // The following are protected by the FakeExtendServer monitor
+    private final LinkedHashMap<Integer, String> groupNames = new LinkedHashMap<Integer, String>();
+    private final HashMap<Integer, List<ExtendConnection.ChannelEntry>> groupChannels =
+            new HashMap<Integer, List<ExtendConnection.ChannelEntry>>();
+    private List<ExtendConnection.ChannelEntry> lineup = new ArrayList<ExtendConnection.ChannelEntry>();
+    private final HashMap<String, Session> sessions = new HashMap<String, Session>();
+    private final ArrayList<Transcode> transcodes = new ArrayList<Transcode>();
+    private final HashMap<String, Integer> requestCounts = new HashMap<String, Integer>();
+    private final HashMap<Integer, byte[]> logos = new HashMap<Integer, byte[]>();
+    private final ArrayList<Socket> clients = new ArrayList<Socket>();
+    private String expireOnMethod;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    public FakeExtendServer(String password) {
+        this.password = password;
+    }
+
+    public synchronized FakeExtendServer start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        running = true;
+
+        acceptThread = new Thread("Fake Extend Server") {
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+
+        synchronized (this) {
+            try {
+                if (serverSocket != null) {
+                    serverSocket.close();
+                }
+            } catch (IOException ignored) {}
+
+            for (Socket client : clients) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {}
+            }
+            clients.clear();
+        }
+    }
+
+    public InetAddress getAddress() {
+        return serverSocket.getInetAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Delay before each response is sent
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    // Limit on how fast each response body is sent, or 0 for no limit
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    // How long a new transcode reports buffering before it's final
+    public void setBufferingMs(long bufferingMs) {
+        this.bufferingMs = bufferingMs;
+    }
+
+    public void setSegments(long durationMs, int bytes, int window) {
+        this.segmentDurationMs = durationMs;
+        this.segmentBytes = bytes;
+        this.windowSegments = window;
+    }
+
+    // While set, every channel.transcode.initiate fails as if the server had
+    // no tuner free
+    public void setRejectTranscodes(boolean reject) {
+        this.rejectTranscodes = reject;
+    }
+
+    // Serves the channels without any groups, like a server with one lineup
+    public synchronized void setLineup(List<ExtendConnection.ChannelEntry> channels) {
+        lineup = new ArrayList<ExtendConnection.ChannelEntry>(channels);
+    }
+
+    public synchronized void addGroup(int groupId, String name, List<ExtendConnection.ChannelEntry> channels) {
+        groupNames.put(groupId, name);
+        groupChannels.put(groupId, new ArrayList<ExtendConnection.ChannelEntry>(channels));
+        lineup.addAll(channels);
+    }
+
+    // Gives the channel a logo, served as image/png whatever the bytes are
+    public synchronized void setLogo(int channelId, byte[] image) {
+        logos.put(channelId, image);
+    }
+
+    // Forgets every session, as if the server had restarted
+    public synchronized void expireSessions() {
+        sessions.clear();
+    }
+
+    // Forgets every session when the next request for the method arrives, so
+    // requests already in flight with it fail as well
+    public synchronized void expireSessionsOn(String method) {
+        expireOnMethod = method;
+    }
+
+    // Number of TCP connections the server has accepted
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    // Number of sessions that have been initiated
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    // Number of requests for the service method, or for "playlist" and "segment"
+    public synchronized int getRequestCount(String method) {
+        Integer count = requestCounts.get(method);
+        return count != null ? count : 0;
+    }
+
+    public synchronized List<Transcode> getTranscodes() {
+        return new ArrayList<Transcode>(transcodes);
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            connectionCount.incrementAndGet();
+            synchronized (this) {
+                clients.add(client);
+            }
+
+            Thread thread = new Thread("Fake Extend Client") {
+                public void run() {
+                    try {
+                        serveClient(client);
+                    } catch (IOException ignored) {
+                        // The client went away
+                    } finally {
+                        try {
+                            client.close();
+                        } catch (IOException ignored) {}
+                        synchronized (FakeExtendServer.this) {
+                            clients.remove(client);
+                        }
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static class Response {
+        final String status;
+        final String contentType;
+        final byte[] body;
+
+        Response(String status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    private void serveClient(Socket client) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+        OutputStream out = client.getOutputStream();
+
+        while (running) {
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+
+            boolean keepAlive = true;
+            String header;
+            while ((header = reader.readLine()) != null && !header.isEmpty()) {
+                if (header.toLowerCase().startsWith("connection:") && header.toLowerCase().contains("close")) {
+                    keepAlive = false;
+                }
+            }
+
+            String[] parts = requestLine.split(" ");
+            Response response;
+            if (parts.length < 3 || !parts[0].equals("GET")) {
+                response = text("405 Method Not Allowed");
+            }
+            else {
+                response = handle(parts[1]);
+            }
+
+            sleep(latencyMs);
+            String headers = "HTTP/1.1 " + response.status + "\r\n" +
+                    "Content-Type: " + response.contentType + "\r\n" +
+                    "Content-Length: " + response.body.length + "\r\n" +
+                    "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+            out.write(headers.getBytes("ISO-8859-1"));
+            writeThrottled(out, response.body);
+            out.flush();
+
+            if (!keepAlive) {
+                return;
+            }
+        }
+    }
+
+    private void writeThrottled(OutputStream out, byte[] body) throws IOException {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            out.write(body);
+            return;
+        }
+
+        // Send in small chunks, each when the rate allows it
+        long start = System.nanoTime();
+        int chunk = 4096;
+        for (int offset = 0; offset < body.length; offset += chunk) {
+            int length = Math.min(chunk, body.length - offset);
+            out.write(body, offset, length);
+            out.flush();
+
+            long dueNanos = (offset + length) * 1000000000L / rate;
+            long aheadMs = (dueNanos - (System.nanoTime() - start)) / 1000000;
+            sleep(aheadMs);
+        }
+    }
+
+    private static void sleep(long ms) throws IOException {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private Response handle(String target) throws UnsupportedEncodingException {
+        int query = target.indexOf('?');
+        String path = query >= 0 ? target.substring(0, query) : target;
+        Map<String, String> params = parseQuery(query >= 0 ? target.substring(query + 1) : "");
+
+        if (path.equals(SERVICE_PATH)) {
+            String method = params.get("method");
+            countRequest(method != null ? method : "");
+            if ("channel.icon".equals(method)) {
+                return handleIcon(params);
+            }
+            return xml(handleService(method, params));
+        }
+        else if (path.equals(PLAYLIST_PATH)) {
+            countRequest("playlist");
+            return handlePlaylist(params);
+        }
+        else if (path.startsWith(SEGMENT_PREFIX)) {
+            countRequest("segment");
+            return handleSegment(path.substring(SEGMENT_PREFIX.length()), params);
+        }
+        return text("404 Not Found");
+    }
+
+    private synchronized void countRequest(String name) {
+        requestCounts.put(name, getRequestCount(name) + 1);
+    }
+
+    private synchronized String handleService(String method, Map<String, String> params) {
+        if ("session.initiate".equals(method)) {
+            String sid = "sid" + sessionCount.incrementAndGet();
+            String salt = "salt" + System.nanoTime();
+            sessions.put(sid, new Session(salt));
+            return ExtendResponses.sessionInitiate(sid, salt);
+        }
+
+        if (method != null && method.equals(expireOnMethod)) {
+            expireOnMethod = null;
+            sessions.clear();
+        }
+
+        Session session = sessions.get(params.get("sid"));
+        if (session == null) {
+            return ExtendResponses.fail(SESSION_ERROR_CODE, SESSION_ERROR_MESSAGE);
+        }
+
+        if ("session.login".equals(method)) {
+            if (!expectedMd5(session.salt).equals(params.get("md5"))) {
+                return ExtendResponses.fail("3", "Invalid password");
+            }
+            session.loggedIn = true;
+            return ExtendResponses.ok();
+        }
+        if (!session.loggedIn) {
+            return ExtendResponses.fail(SESSION_ERROR_CODE, SESSION_ERROR_MESSAGE);
+        }
+
+        if ("channel.group.list".equals(method)) {
+            ArrayList<ExtendConnection.ChannelGroup> groups = new ArrayList<ExtendConnection.ChannelGroup>();
+            for (Map.Entry<Integer, String> group : groupNames.entrySet()) {
+                groups.add(new ExtendConnection.ChannelGroup(group.getKey(), group.getValue()));
+            }
+            return ExtendResponses.channelGroups(groups);
+        }
+        else if ("channel.list".equals(method)) {
+            List<ExtendConnection.ChannelEntry> channels = groupChannels.get(parseInt(params.get("group_id")));
+            return ExtendResponses.channelList(channels != null ? channels : lineup);
+        }
+        else if ("setting.set".equals(method)) {
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                String name = param.getKey();
+                if (!name.equals("method") && !name.equals("sid") && !name.equals("device")) {
+                    session.settings.put(name, param.getValue());
+                }
+            }
+            return ExtendResponses.ok();
+        }
+        else if ("channel.transcode.initiate".equals(method)) {
+            int channelId = parseInt(params.get("channel_id"));
+            if (findChannel(channelId) == null) {
+                return ExtendResponses.fail("4", "Unknown channel");
+            }
+            if (rejectTranscodes) {
+                return ExtendResponses.fail("5", "No tuner available");
+            }
+
+            if (session.transcode != null) {
+                session.transcode.stopped = true;
+            }
+            session.transcode = new Transcode(params.get("sid"), channelId,
+                    Collections.unmodifiableMap(new LinkedHashMap<String, String>(session.settings)));
+            transcodes.add(session.transcode);
+            return ExtendResponses.ok();
+        }
+        else if ("channel.transcode.status".equals(method)) {
+            Transcode transcode = session.transcode;
+            if (transcode == null || transcode.stopped) {
+                return ExtendResponses.transcodeStatus("stopped", false, 0);
+            }
+
+            long elapsedMs = (System.nanoTime() - transcode.startNanos) / 1000000;
+            int percentage = bufferingMs > 0 ? (int) Math.min(100, elapsedMs * 100 / bufferingMs) : 100;
+            return ExtendResponses.transcodeStatus(percentage < 100 ? "buffering" : "transcoding",
+                    percentage == 100, percentage);
+        }
+        else if ("channel.transcode.stop".equals(method)) {
+            if (session.transcode != null) {
+                session.transcode.stopped = true;
+                session.transcode = null;
+            }
+            return ExtendResponses.ok();
+        }
+        else if ("program.list".equals(method)) {
+            return ExtendResponses.ok();
+        }
+
+        return ExtendResponses.fail("1", "Unknown method");
+    }
+
+    private String expectedMd5(String salt) {
+        return md5(':' + md5(password.toLowerCase()) + ':' + salt);
+    }
+
+    private ExtendConnection.ChannelEntry findChannel(int channelId) {
+        for (ExtendConnection.ChannelEntry channel : lineup) {
+            if (channel.channelId == channelId) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    // The live window of the session's transcode, or null if it doesn't have
+    // one running for the channel
+    private synchronized Transcode findTranscode(Map<String, String> params) {
+        Session session = sessions.get(params.get("sid"));
+        if (session == null || session.transcode == null || session.transcode.stopped ||
+                session.transcode.channelId != parseInt(params.get("channel_id"))) {
+            return null;
+        }
+        return session.transcode;
+    }
+
+    // Errors are answered with an rsp document in place of the image
+    private synchronized Response handleIcon(Map<String, String> params) throws UnsupportedEncodingException {
+        Session session = sessions.get(params.get("sid"));
+        if (session == null || !session.loggedIn) {
+            return xml(ExtendResponses.fail(SESSION_ERROR_CODE, SESSION_ERROR_MESSAGE));
+        }
+
+        byte[] image = logos.get(parseInt(params.get("channel_id")));
+        if (image == null) {
+            return text("404 Not Found");
+        }
+        return new Response("200 OK", "image/png", image);
+    }
+
+    private Response handlePlaylist(Map<String, String> params) throws UnsupportedEncodingException {
+        Transcode transcode = findTranscode(params);
+        if (transcode == null) {
+            return text("404 Not Found");
+        }
+
+        // Segments are finished one per segment duration from the start
+        long elapsedMs = (System.nanoTime() - transcode.startNanos) / 1000000;
+        int available = (int) (elapsedMs / segmentDurationMs);
+        int first = Math.max(0, available - windowSegments);
+
+        StringBuilder playlist = new StringBuilder();
+        playlist.append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:3\n")
+                .append("#EXT-X-TARGETDURATION:").append((segmentDurationMs + 999) / 1000).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:").append(first).append('\n');
+        for (int sequence = first; sequence < available; sequence++) {
+            playlist.append("#EXTINF:").append(segmentDurationMs / 1000.0).append(",\n")
+                    .append("segment/").append(transcode.channelId).append('/').append(sequence)
+                    .append(".ts?sid=").append(transcode.sessionId)
+                    .append("&channel_id=").append(transcode.channelId).append('\n');
+        }
+
+        return new Response("200 OK", "application/vnd.apple.mpegurl", playlist.toString().getBytes("UTF-8"));
+    }
+
+    private Response handleSegment(String name, Map<String, String> params) {
+        Transcode transcode = findTranscode(params);
+        if (transcode == null || !name.endsWith(".ts")) {
+            return text("404 Not Found");
+        }
+
+        int slash = name.indexOf('/');
+        int sequence = parseInt(name.substring(slash + 1, name.length() - ".ts".length()));
+        long elapsedMs = (System.nanoTime() - transcode.startNanos) / 1000000;
+        if (sequence < 0 || sequence >= elapsedMs / segmentDurationMs) {
+            return text("404 Not Found");
+        }
+
+        // Transport stream packets that carry the sequence number, so a test
+        // can tell segments apart
+        byte[] data = new byte[segmentBytes];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i % 188 == 0 ? 0x47 : (byte) sequence;
+        }
+        return new Response("200 OK", "video/mp2t", data);
+    }
+
+    private static Response xml(String body) throws UnsupportedEncodingException {
+        return new Response("200 OK", "text/xml", body.getBytes("UTF-8"));
+    }
+
+    private static Response text(String status) {
+        return new Response(status, "text/plain", new byte[0]);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+        for (String param : query.split("&")) {
+            if (param.isEmpty()) {
+                continue;
+            }
+            int equals = param.indexOf('=');
+            if (equals < 0) {
+                params.put(URLDecoder.decode(param, "UTF-8"), "");
+            }
+            else {
+                params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static int parseInt(String str) {
+        try {
+            return Integer.parseInt(str);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String md5(String str) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(str.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.cgutman.openwtv.protocol;
+
+import java.util.ArrayList;
+
+// Guides for the channel list tests and benchmarks, built without a server
+public class SyntheticGuide {
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private SyntheticGuide() {}
+
+    // A guide with a current and a next program for every channel in the
+    // table. Row n's are "Show n" and "Late Show n".
+    public static ProgramGuide forTable(ChannelTable table, long now) {
+        ArrayList<ExtendConnection.ProgramEntry> programs = new ArrayList<ExtendConnection.ProgramEntry>();
+        for (int row = 0; row < table.size(); row++) {
+            int channelId = table.getChannelId(row);
+            long start = now - (row % 60) * 60 * 1000;
+            programs.add(new ExtendConnection.ProgramEntry(channelId, start, start + HOUR_MS, "Show " + row));
+            programs.add(new ExtendConnection.ProgramEntry(channelId, start + HOUR_MS, start + 2 * HOUR_MS,
+                    "Late Show " + row));
+        }
+
+        ProgramGuide guide = new ProgramGuide();
+        guide.merge(now, now + 6 * HOUR_MS, programs, now);
+        return guide;
+    }
+}